@@ -10,7 +10,12 @@ import java.util.Scanner;
 // Press Shift twice to open the Search Everywhere dialog and type `show whitespaces`,
 // then press Enter. You can now see whitespace characters in your code.
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        // "pipeline [depth]" or "ingest <files> [depth] [batch]" run the pipelined client instead.
+        if (args.length > 0) {
+            PipelinedClient.main(args);
+            return;
+        }
         //Socket CLient
         System.out.println("Hello and welcome!");
         Scanner scanner = new Scanner(System.in);
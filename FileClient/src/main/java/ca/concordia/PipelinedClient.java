@@ -0,0 +1,199 @@
+package ca.concordia;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+// Client for the line commands that does not wait for each reply before sending the next command.
+// Up to depth replies may be outstanding; commands are written in bursts and only flushed when the
+// window is full or the input runs out. Replies are always read back in order.
+public class PipelinedClient implements Closeable {
+
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final Writer writer;
+    private final int depth;
+
+    public PipelinedClient(String host, int port, int depth) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.depth = depth;
+        // Welcome line and command list.
+        reader.readLine();
+        reader.readLine();
+    }
+
+    // Sends every command and passes each reply to handler in order; returns the number of replies.
+    // PUT and GET carry raw bytes and are not supported here.
+    public long run(Iterator<String> commands, Consumer<String> handler) throws Exception {
+        // The window counts units: a single command, or a whole BATCH, whose replies only start once
+        // all of its lines have arrived. units holds the reply count of each unit in flight.
+        Semaphore window = new Semaphore(depth);
+        Queue<Integer> units = new ConcurrentLinkedQueue<>();
+        Object lock = new Object();
+        long[] expected = {0};
+        boolean[] done = {false};
+        Exception[] failure = {null};
+        Thread sender = new Thread(() -> {
+            int batchLines = 0;
+            try {
+                while (commands.hasNext()) {
+                    String command = commands.next();
+                    int replies = 0;
+                    if (batchLines > 0) {
+                        batchLines--;
+                    } else {
+                        batchLines = batchSize(command);
+                        replies = batchLines > 0 ? batchLines : 1;
+                    }
+                    if (replies > 0) {
+                        if (!window.tryAcquire()) {
+                            writer.flush();
+                            window.acquire();
+                        }
+                        units.add(replies);
+                        synchronized (lock) {
+                            expected[0] += replies;
+                            lock.notifyAll();
+                        }
+                    }
+                    writer.write(command);
+                    writer.write('\n');
+                    // An EXIT among the lines of a BATCH is just one of its (rejected) operations.
+                    if (replies > 0 && command.trim().equalsIgnoreCase("EXIT")) break;
+                }
+                writer.flush();
+            } catch (Exception e) {
+                failure[0] = e;
+            } finally {
+                synchronized (lock) {
+                    done[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        }, "pipeline-sender");
+        sender.start();
+        long received = 0;
+        int unitLeft = 0;
+        while (true) {
+            synchronized (lock) {
+                while (received == expected[0] && !done[0]) lock.wait();
+                if (received == expected[0]) break;
+            }
+            String reply = readReply();
+            if (reply == null) {
+                // The sender may be waiting for window space that will never be released.
+                sender.interrupt();
+                sender.join();
+                long missing;
+                synchronized (lock) {
+                    missing = expected[0] - received;
+                }
+                throw new IOException("Server closed the connection with " + missing + " replies outstanding.");
+            }
+            received++;
+            if (unitLeft == 0) unitLeft = units.poll();
+            if (--unitLeft == 0) window.release();
+            handler.accept(reply);
+        }
+        sender.join();
+        if (failure[0] != null) throw failure[0];
+        return received;
+    }
+
+    // One reply; LIST and STATS span several lines, up to "(End of list)" or "(End of stats)".
+    private String readReply() throws IOException {
+        String line = reader.readLine();
+        String end;
+        if (line == null) return null;
+        else if (line.startsWith("Listing files:") || line.startsWith("Listing snapshots:")) end = "(End of list)";
+        else if (line.startsWith("Server statistics:")) end = "(End of stats)";
+        else return line;
+        StringBuilder reply = new StringBuilder(line);
+        while ((line = reader.readLine()) != null) {
+            reply.append('\n').append(line);
+            if (line.equals(end)) break;
+        }
+        return reply.toString();
+    }
+
+    // Same rule as the server: "BATCH <n>" or "MULTI <n>" with 1 <= n <= 10000 opens a batch.
+    private static int batchSize(String command) {
+        String[] parts = command.trim().split(" ");
+        if (parts.length != 2) return 0;
+        if (!parts[0].equalsIgnoreCase("BATCH") && !parts[0].equalsIgnoreCase("MULTI")) return 0;
+        try {
+            int count = Integer.parseInt(parts[1]);
+            return count > 0 && count <= 10000 ? count : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // pipeline [depth]: sends the commands read from standard input and prints the replies.
+    // ingest <files> [depth] [batch]: creates and writes small files and reports ops/s; depth 1
+    // and batch 1 behave like the interactive client, one round trip per command.
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("fileclient.host", "localhost");
+        int port = Integer.getInteger("fileclient.port", 12345);
+        if (args[0].equalsIgnoreCase("ingest")) {
+            ingest(host, port, Integer.parseInt(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 64,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 1);
+            return;
+        }
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        Iterator<String> commands = stdin.lines().filter(line -> !line.isEmpty()).iterator();
+        try (PipelinedClient client = new PipelinedClient(host, port, depth)) {
+            client.run(commands, System.out::println);
+        }
+    }
+
+    private static void ingest(String host, int port, int files, int depth, int batch) throws Exception {
+        String payload = "x".repeat(100);
+        List<String> load = new ArrayList<>();
+        List<String> cleanup = new ArrayList<>();
+        for (int i = 0; i < files; i += batch) {
+            int n = Math.min(batch, files - i);
+            if (batch > 1) load.add("BATCH " + 2 * n);
+            for (int j = i; j < i + n; j++) {
+                load.add("CREATE i" + j);
+                load.add("WRITE i" + j + " " + payload);
+            }
+            if (batch > 1) cleanup.add("BATCH " + n);
+            for (int j = i; j < i + n; j++) cleanup.add("DELETE i" + j);
+        }
+        try (PipelinedClient client = new PipelinedClient(host, port, depth)) {
+            long[] errors = {0};
+            Consumer<String> check = reply -> {
+                if (reply.startsWith("Error") && errors[0]++ == 0) System.out.println("First error: " + reply);
+            };
+            long start = System.nanoTime();
+            long ops = client.run(load.iterator(), check);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Ingested %d files (%d ops) in %.2f s: %.0f ops/s, depth %d, batch %d, %d errors%n",
+                    files, ops, seconds, ops / seconds, depth, batch, errors[0]);
+            client.run(cleanup.iterator(), check);
+        }
+    }
+}
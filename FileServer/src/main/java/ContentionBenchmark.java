@@ -0,0 +1,84 @@
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.logging.Log;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Measures FileSystemManager throughput under many threads, once with the per-file locks and once with
+// every call funnelled through a single lock (the old globalLock behaviour) so the two can be compared.
+// Usage: ContentionBenchmark [threads] [seconds] [readPercent]
+public class ContentionBenchmark {
+
+    private static final int FILES = 5;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int readPercent = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+
+        System.out.println("threads=" + threads + " seconds=" + seconds + " reads=" + readPercent + "%");
+        // Keep the file system's logging out of the measurement.
+        Log.setLevel(Log.Level.OFF);
+        double global = run(true, threads, seconds, readPercent);
+        double perFile = run(false, threads, seconds, readPercent);
+        System.out.printf("global lock:    %,.0f ops/s%n", global);
+        System.out.printf("per-file locks: %,.0f ops/s (%.2fx)%n", perFile, perFile / global);
+    }
+
+    private static double run(boolean globalLock, int threads, int seconds, int readPercent) throws Exception {
+        File diskFile = File.createTempFile("contention", ".bin");
+        diskFile.deleteOnExit();
+        FileSystemManager fs = new FileSystemManager(diskFile.getPath(), 4096);
+        try {
+            return run(fs, globalLock, threads, seconds, readPercent);
+        } finally {
+            fs.close();
+            diskFile.delete();
+        }
+    }
+
+    private static double run(FileSystemManager fs, boolean globalLock, int threads, int seconds, int readPercent)
+            throws Exception {
+        String[] names = new String[FILES];
+        for (int i = 0; i < FILES; i++) {
+            names[i] = "file" + i;
+            fs.createFile(names[i]);
+            fs.writeFile(names[i], "payload-" + i);
+        }
+
+        ReentrantLock lock = new ReentrantLock();
+        LongAdder ops = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long[] deadline = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    while (System.nanoTime() < deadline[0]) {
+                        String name = names[random.nextInt(FILES)];
+                        boolean read = random.nextInt(100) < readPercent;
+                        if (globalLock) lock.lock();
+                        try {
+                            if (read) fs.readFile(name);
+                            else fs.writeFile(name, "payload-" + name);
+                        } finally {
+                            if (globalLock) lock.unlock();
+                        }
+                        ops.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            workers[t].start();
+        }
+        deadline[0] = System.nanoTime() + seconds * 1_000_000_000L;
+        start.countDown();
+        for (Thread worker : workers) worker.join();
+        return ops.sum() / (double) seconds;
+    }
+}
@@ -1,27 +1,312 @@
+import ca.concordia.metrics.LatencyHistogram;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+// Load generator for a running server. Each connection has a sender and a receiver thread, with up to
+// depth commands in flight. With a target rate the load is open-loop: command i of a connection is due
+// at start + i / (rate / connections) and its latency is measured from that due time, not from when it
+// was actually sent, so a stalled server is charged for the commands it kept the generator from sending
+// (coordinated omission). Without a rate every connection sends as fast as its window allows and only
+// the service time (send to reply) is meaningful.
+// Usage: LoadTest [key=value ...], keys and defaults:
+//   host=localhost port=12345 connections=4 depth=1 rate=0 (ops/s, all connections) duration=10 warmup=2
+//   mix=read:70,write:20,create:5,delete:5,list:0 payload=100 (or min-max) files=1 (per connection)
+// The server needs at least connections * (files + 4) inodes, e.g. -Dfileserver.maxFiles=1000.
 public class LoadTest {
 
+    private enum Op { READ, WRITE, CREATE, DELETE, LIST }
+
+    // Temporary files CREATE and DELETE cycle through, per connection.
+    private static final int TEMP_FILES = 4;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final int depth;
+    private final double rate;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final int[] mix = new int[Op.values().length];
+    private final int mixTotal;
+    private final int payloadMin;
+    private final int payloadMax;
+    private final int files;
+
+    private final LatencyHistogram[] corrected = new LatencyHistogram[Op.values().length];
+    private final LatencyHistogram[] service = new LatencyHistogram[Op.values().length];
+    private final LongAdder[] errors = new LongAdder[Op.values().length];
+
+    private LoadTest(Map<String, String> options) {
+        host = options.getOrDefault("host", "localhost");
+        port = Integer.parseInt(options.getOrDefault("port", "12345"));
+        connections = Integer.parseInt(options.getOrDefault("connections", "4"));
+        depth = Integer.parseInt(options.getOrDefault("depth", "1"));
+        rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        durationNanos = (long) (Double.parseDouble(options.getOrDefault("duration", "10")) * 1e9);
+        warmupNanos = (long) (Double.parseDouble(options.getOrDefault("warmup", "2")) * 1e9);
+        for (String part : options.getOrDefault("mix", "read:70,write:20,create:5,delete:5,list:0").split(",")) {
+            String[] kv = part.split(":");
+            mix[Op.valueOf(kv[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(kv[1].trim());
+        }
+        int total = 0;
+        for (int weight : mix) {
+            if (weight < 0) throw new IllegalArgumentException("Mix weights cannot be negative.");
+            total += weight;
+        }
+        if (total == 0) throw new IllegalArgumentException("The mix needs at least one positive weight.");
+        mixTotal = total;
+        String[] payload = options.getOrDefault("payload", "100").split("-");
+        payloadMin = Integer.parseInt(payload[0]);
+        payloadMax = Integer.parseInt(payload[payload.length - 1]);
+        files = Integer.parseInt(options.getOrDefault("files", "1"));
+        for (int i = 0; i < corrected.length; i++) {
+            corrected[i] = new LatencyHistogram();
+            service[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        int threads = 1000;
-        for (int i = 0; i < threads; i++) {
-            new Thread(() -> {
-                try {
-                    Socket s = new Socket("localhost", 12345);
-                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-                    PrintWriter out = new PrintWriter(s.getOutputStream(), true);
-                    in.readLine();
-                    in.readLine();
-                    out.println("LIST");
-                    in.readLine();
-                    s.close();
-                } catch (Exception e) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    private void run() throws Exception {
+        List<Connection> all = new ArrayList<>();
+        for (int i = 0; i < connections; i++) all.add(new Connection(i));
+        for (Connection c : all) c.setUp();
+        long start = System.nanoTime() + 100_000_000L;
+        for (Connection c : all) c.start(start);
+        for (Connection c : all) c.join();
+        for (Connection c : all) c.close();
+        report();
+    }
+
+    private void report() {
+        double seconds = (durationNanos - warmupNanos) / 1e9;
+        System.out.printf("connections %d, depth %d, rate %s, payload %d-%d bytes, %.0f s measured%n",
+                connections, depth, rate > 0 ? String.format("%.0f ops/s", rate) : "unlimited",
+                payloadMin, payloadMax, seconds);
+        LatencyHistogram[] latencies = rate > 0 ? corrected : service;
+        System.out.println(rate > 0 ? "Latency from intended send time (coordinated-omission corrected):"
+                : "Service time (closed loop, not corrected for coordinated omission):");
+        long total = 0;
+        for (Op op : Op.values()) {
+            LatencyHistogram h = latencies[op.ordinal()];
+            if (h.getCount() == 0) continue;
+            total += h.getCount();
+            System.out.printf("%-7s %,10d ops %,10.0f ops/s  p50 %,9.1f us  p99 %,9.1f us  p99.9 %,9.1f us"
+                            + "  max %,9.1f us  %d errors%n",
+                    op, h.getCount(), h.getCount() / seconds, h.percentileNanos(0.5) / 1e3,
+                    h.percentileNanos(0.99) / 1e3, h.percentileNanos(0.999) / 1e3, h.getMaxNanos() / 1e3,
+                    errors[op.ordinal()].sum());
+        }
+        System.out.printf("total   %,10d ops %,10.0f ops/s%n", total, total / seconds);
+    }
+
+    private Op pick(ThreadLocalRandom random) {
+        int r = random.nextInt(mixTotal);
+        for (Op op : Op.values()) {
+            r -= mix[op.ordinal()];
+            if (r < 0) return op;
+        }
+        return Op.READ;
+    }
+
+    private String payload(ThreadLocalRandom random) {
+        return "x".repeat(payloadMin + random.nextInt(payloadMax - payloadMin + 1));
+    }
+
+    // A command on the wire: when it was due, when it was sent, and what it was.
+    private static final class Pending {
+        final long intendedNanos;
+        final long sentNanos;
+        final Op op;
+
+        Pending(long intendedNanos, long sentNanos, Op op) {
+            this.intendedNanos = intendedNanos;
+            this.sentNanos = sentNanos;
+            this.op = op;
+        }
+    }
+
+    private final class Connection {
+
+        private final int id;
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final Writer writer;
+        private final Semaphore window = new Semaphore(depth);
+        private final BlockingQueue<Pending> inFlight = new ArrayBlockingQueue<>(depth + 1);
+        private Thread sender;
+        private Thread receiver;
+        // Temporary files created by CREATE and not yet removed by DELETE are temp(deleted) .. temp(created - 1).
+        // Both only advance once the server confirms; while a CREATE or DELETE is in flight no other is sent,
+        // so the sender always knows which names exist.
+        private long created;
+        private long deleted;
+        private volatile boolean tempBusy;
+
+        Connection(int id) throws IOException {
+            this.id = id;
+            this.socket = new Socket(host, port);
+            this.socket.setTcpNoDelay(true);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            // Welcome line and command list.
+            reader.readLine();
+            reader.readLine();
+        }
+
+        // Creates the files this connection reads and writes, one round trip each.
+        void setUp() throws IOException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < files; i++) {
+                for (String command : new String[] {"CREATE " + file(i), "WRITE " + file(i) + " " + payload(random)}) {
+                    writer.write(command + "\n");
+                    writer.flush();
+                    String reply = reader.readLine();
+                    if (reply == null || reply.startsWith("Error")) throw new IOException(command + ": " + reply);
+                }
+            }
+        }
+
+        void start(long startNanos) {
+            sender = new Thread(() -> send(startNanos), "load-sender-" + id);
+            receiver = new Thread(() -> receive(startNanos), "load-receiver-" + id);
+            receiver.start();
+            sender.start();
+        }
+
+        void join() throws InterruptedException {
+            sender.join();
+            receiver.join();
+        }
+
+        void close() throws IOException {
+            // Leave the server as it was found.
+            for (int i = 0; i < files; i++) writer.write("DELETE " + file(i) + "\n");
+            for (long i = deleted; i < created; i++) writer.write("DELETE " + temp(i) + "\n");
+            writer.write("EXIT\n");
+            writer.flush();
+            while (reader.readLine() != null) { }
+            socket.close();
+        }
+
+        private String file(int i) {
+            return "load" + id + "_" + i;
+        }
+
+        private String temp(long i) {
+            return "t" + id + "_" + i % TEMP_FILES;
+        }
+
+        private void send(long startNanos) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+            long end = startNanos + durationNanos;
+            try {
+                for (long i = 0; ; i++) {
+                    long intended = rate > 0 ? startNanos + i * interval : System.nanoTime();
+                    if (intended >= end) break;
+                    long now;
+                    while ((now = System.nanoTime()) < intended) LockSupport.parkNanos(intended - now);
+                    if (!window.tryAcquire()) {
+                        writer.flush();
+                        window.acquire();
+                    }
+                    Op op = pick(random);
+                    String command = command(op, random);
+                    if (command == null) {
+                        op = Op.READ;
+                        command = "READ " + file(random.nextInt(files));
+                    }
+                    inFlight.put(new Pending(intended, System.nanoTime(), op));
+                    writer.write(command);
+                    writer.write('\n');
+                    // Open-loop commands go out on schedule; closed-loop ones are flushed when the window fills.
+                    if (rate > 0 || depth == 1) writer.flush();
+                }
+                writer.flush();
+                inFlight.put(new Pending(0, 0, null));
+            } catch (Exception e) {
+                System.err.println("Connection " + id + " failed: " + e.getMessage());
+                inFlight.offer(new Pending(0, 0, null));
+            }
+        }
+
+        // The command for op, or null if it cannot be issued now (another CREATE or DELETE is in flight,
+        // CREATE with every temporary file taken, DELETE with nothing to delete).
+        private String command(Op op, ThreadLocalRandom random) {
+            switch (op) {
+                case READ:
+                    return "READ " + file(random.nextInt(files));
+                case WRITE:
+                    return "WRITE " + file(random.nextInt(files)) + " " + payload(random);
+                case CREATE:
+                    if (tempBusy || created - deleted == TEMP_FILES) return null;
+                    tempBusy = true;
+                    return "CREATE " + temp(created);
+                case DELETE:
+                    if (tempBusy || deleted == created) return null;
+                    tempBusy = true;
+                    return "DELETE " + temp(deleted);
+                default:
+                    return "LIST";
+            }
+        }
+
+        private void receive(long startNanos) {
+            long measureFrom = startNanos + warmupNanos;
+            try {
+                while (true) {
+                    Pending pending = inFlight.take();
+                    if (pending.op == null) return;
+                    String reply = reader.readLine();
+                    if (reply == null) throw new IOException("Server closed the connection.");
+                    if (reply.startsWith("Listing files:")) {
+                        while ((reply = reader.readLine()) != null && !reply.equals("(End of list)")) { }
+                    }
+                    long now = System.nanoTime();
+                    boolean ok = reply != null && !reply.startsWith("Error");
+                    if (pending.op == Op.CREATE || pending.op == Op.DELETE) {
+                        if (ok && pending.op == Op.CREATE) created++;
+                        else if (ok) deleted++;
+                        tempBusy = false;
+                    }
+                    window.release();
+                    if (pending.intendedNanos < measureFrom) continue;
+                    int i = pending.op.ordinal();
+                    corrected[i].record(now - pending.intendedNanos);
+                    service[i].record(now - pending.sentNanos);
+                    if (!ok) errors[i].increment();
                 }
-            }).start();
+            } catch (Exception e) {
+                System.err.println("Connection " + id + " failed: " + e.getMessage());
+                // The sender may be waiting for window space that will never be released.
+                sender.interrupt();
+            }
         }
-        System.out.println("Started " + threads + " clients.");
     }
 }
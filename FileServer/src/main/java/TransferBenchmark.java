@@ -0,0 +1,125 @@
+import ca.concordia.logging.Log;
+import ca.concordia.server.ExecutionMode;
+import ca.concordia.server.FileServer;
+import com.sun.management.OperatingSystemMXBean;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Compares download paths of an in-process server for one large file: READ (disk -> String -> PrintWriter),
+// GET copied through a buffer, and zero-copy GET (FileChannel.transferTo). Reports MB/s and the CPU time
+// the whole process (server and client) spends per GB transferred.
+// Usage: TransferBenchmark [fileMB] [rounds]
+public class TransferBenchmark {
+
+    private static final int PORT = 12399;
+    private static final int BLOCK_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int size = fileMb * 1024 * 1024;
+
+        File diskFile = File.createTempFile("transfer", ".bin");
+        diskFile.deleteOnExit();
+        Log.setLevel(Log.Level.OFF);
+        Thread server = new Thread(() -> new FileServer(PORT, diskFile.getPath(), size * 2 + 1024 * 1024,
+                BLOCK_SIZE, 16, ExecutionMode.VIRTUAL));
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        // Letters only, so the text READ path can carry the same file.
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) ('a' + i % 26);
+        try (Socket socket = new Socket("localhost", PORT)) {
+            Connection c = new Connection(socket);
+            c.command("CREATE big");
+            c.out.write(("PUT big " + size + "\n").getBytes(StandardCharsets.UTF_8));
+            c.out.write(data);
+            c.out.flush();
+            c.readLine();
+        }
+
+        System.setProperty("fileserver.zeroCopy", "false");
+        Result buffered = run(rounds, size, false);
+        System.setProperty("fileserver.zeroCopy", "true");
+        Result zeroCopy = run(rounds, size, false);
+        Result text = run(rounds, size, true);
+        System.out.println("file " + fileMb + " MB x " + rounds + " rounds");
+        System.out.println("READ (text):       " + text);
+        System.out.println("GET (buffered):    " + buffered);
+        System.out.println("GET (transferTo):  " + zeroCopy);
+    }
+
+    private static Result run(int rounds, int size, boolean text) throws Exception {
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        try (Socket socket = new Socket("localhost", PORT)) {
+            Connection c = new Connection(socket);
+            byte[] buffer = new byte[64 * 1024];
+            long cpuStart = os.getProcessCpuTime();
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                if (text) {
+                    String line = c.command("READ big");
+                    if (line.length() != "File content: ".length() + size) throw new IllegalStateException(line);
+                } else {
+                    String header = c.command("GET big");
+                    long remaining = Long.parseLong(header.substring(3));
+                    while (remaining > 0) {
+                        int n = c.in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (n < 0) throw new IllegalStateException("Connection closed");
+                        remaining -= n;
+                    }
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            long cpu = os.getProcessCpuTime() - cpuStart;
+            return new Result((double) size * rounds, elapsed, cpu);
+        }
+    }
+
+    private record Result(double bytes, long elapsedNanos, long cpuNanos) {
+        @Override
+        public String toString() {
+            double mbPerSecond = bytes / (1024 * 1024) / (elapsedNanos / 1e9);
+            double cpuMsPerGb = cpuNanos / 1e6 / (bytes / (1024.0 * 1024 * 1024));
+            return String.format("%,8.1f MB/s  %,8.0f ms CPU/GB", mbPerSecond, cpuMsPerGb);
+        }
+    }
+
+    // Byte-level connection, so text headers and raw payloads can be read from the same stream.
+    private static final class Connection {
+        final InputStream in;
+        final OutputStream out;
+
+        Connection(Socket socket) throws Exception {
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+            readLine();
+            readLine();
+        }
+
+        String command(String line) throws Exception {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return readLine();
+        }
+
+        String readLine() throws Exception {
+            byte[] line = new byte[256];
+            int length = 0;
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (length == line.length) line = Arrays.copyOf(line, length * 2);
+                line[length++] = (byte) b;
+            }
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The command mix of LoadTest run directly against FileSystemManager, with no sockets or protocol
+// parsing, so engine cost can be told apart from network cost. SampleTime reports p50/p99/p99.9
+// per operation; add -t <threads> to measure under contention.
+// Run with: java -cp target/classes:<jmh jars> org.openjdk.jmh.Main EngineBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+    private static final int FILES = 256;
+    private static final int BLOCK_SIZE = 128;
+
+    @Param({"100", "4096"})
+    public int payloadBytes;
+
+    @Param({"false", "true"})
+    public boolean journal;
+
+    // Every file holds the same payload, so with compact storage all writes after the first are dedup hits.
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private FileSystemManager fs;
+    private File diskFile;
+    private String[] names;
+    private String payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        diskFile = File.createTempFile("engine-bench", ".bin");
+        int maxFiles = FILES + 1024;
+        // Room for every file at full size, plus the create/delete churn.
+        long totalSize = (long) maxFiles * (payloadBytes + 2 * BLOCK_SIZE + 64) + 4096;
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(diskFile.getPath(), totalSize, ForcePolicy.NEVER);
+        Journal log = journal ? new Journal(diskFile.getPath() + ".journal", disk, 4L << 20) : null;
+        fs = new FileSystemManager(disk, log, BLOCK_SIZE, maxFiles);
+        if (compact) fs.enableCompactStorage();
+        payload = "x".repeat(payloadBytes);
+        names = new String[FILES];
+        for (int i = 0; i < FILES; i++) {
+            names[i] = "f" + i;
+            fs.createFile(names[i]);
+            fs.writeFile(names[i], payload);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.close();
+        diskFile.delete();
+        new File(diskFile.getPath() + ".journal").delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Names {
+        private int next;
+
+        String nextName() {
+            return "t" + Long.toHexString(Thread.currentThread().threadId()) + "_" + (next++ & 0xFFFF);
+        }
+    }
+
+    private String randomFile() {
+        return names[ThreadLocalRandom.current().nextInt(FILES)];
+    }
+
+    @Benchmark
+    public String read() throws Exception {
+        return fs.readFile(randomFile());
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        fs.writeFile(randomFile(), payload);
+    }
+
+    @Benchmark
+    public void createDelete(Names threadNames) throws Exception {
+        String name = threadNames.nextName();
+        fs.createFile(name);
+        fs.deleteFile(name);
+    }
+
+    @Benchmark
+    public String list() {
+        return fs.listFilesToString();
+    }
+}
@@ -0,0 +1,87 @@
+package ca.concordia.benchmark;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.MappedBlockStore;
+import ca.concordia.logging.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cost of filename lookup and of create + delete as the number of files grows. With the hash
+// index, bitmap allocator and free-inode stack these should stay flat instead of growing linearly.
+// Run with: java -cp target/classes:<jmh jars> org.openjdk.jmh.Main FileIndexBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileIndexBenchmark {
+
+    private static final int BLOCK_SIZE = 64;
+    private static final int SPARE_FILES = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int fileCount;
+
+    private FileSystemManager fs;
+    private File diskFile;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        diskFile = File.createTempFile("index-bench", ".bin");
+        int maxFiles = fileCount + SPARE_FILES;
+        long totalSize = (long) maxFiles * (BLOCK_SIZE + 32) + 4096;
+        fs = new FileSystemManager(new MappedBlockStore(diskFile.getPath(), totalSize, ForcePolicy.NEVER),
+                BLOCK_SIZE, maxFiles);
+        names = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            names[i] = "f" + i;
+            fs.createFile(names[i]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.close();
+        diskFile.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Names {
+        private int next;
+
+        String nextName() {
+            return "t" + Long.toHexString(Thread.currentThread().threadId()) + "_" + (next++ & 0xFFFF);
+        }
+    }
+
+    @Benchmark
+    public String lookup() throws Exception {
+        return fs.readFile(names[ThreadLocalRandom.current().nextInt(fileCount)]);
+    }
+
+    @Benchmark
+    public void createDelete(Names threadNames) throws Exception {
+        String name = threadNames.nextName();
+        fs.createFile(name);
+        fs.deleteFile(name);
+    }
+}
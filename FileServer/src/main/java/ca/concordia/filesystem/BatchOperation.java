@@ -0,0 +1,41 @@
+package ca.concordia.filesystem;
+
+// One CREATE, WRITE or DELETE inside a batch applied with FileSystemManager.applyBatch.
+public class BatchOperation {
+
+    public enum Type { CREATE, WRITE, DELETE }
+
+    private final Type type;
+    private final String fileName;
+    private final String data;
+
+    private BatchOperation(Type type, String fileName, String data) {
+        this.type = type;
+        this.fileName = fileName;
+        this.data = data;
+    }
+
+    public static BatchOperation create(String fileName) {
+        return new BatchOperation(Type.CREATE, fileName, null);
+    }
+
+    public static BatchOperation write(String fileName, String data) {
+        return new BatchOperation(Type.WRITE, fileName, data);
+    }
+
+    public static BatchOperation delete(String fileName) {
+        return new BatchOperation(Type.DELETE, fileName, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getData() {
+        return data;
+    }
+}
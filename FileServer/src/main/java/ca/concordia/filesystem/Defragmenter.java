@@ -0,0 +1,149 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.InodeTable;
+import ca.concordia.filesystem.datastructures.InodeView;
+import ca.concordia.logging.Log;
+import java.util.concurrent.TimeUnit;
+
+// Background compaction of one FileSystemManager's data region. Every intervalMillis a pass walks the
+// files in slot order and moves each one whose chain is split over several extents into the lowest free
+// extent long enough for all of it, so it reads sequentially again and the free space gathers at the end
+// of the disk. Copying is paced to bytesPerSecond; how a file is moved while it stays in use is up to
+// FileSystemManager.relocate.
+final class Defragmenter implements Runnable {
+
+    // Each switch-over costs a journal checkpoint, so it is paced as if this much had been copied.
+    private static final int SWITCH_COST_BYTES = 64 * 1024;
+
+    private final FileSystemManager fs;
+    private final long bytesPerSecond;
+    private final long intervalMillis;
+    private final Thread thread;
+    // Guarded by this; set once by stop().
+    private boolean stopped;
+    // When the copying may go on, as far as the pacing goes. Only used by the defragmenter thread.
+    private long nextChunkNanos;
+
+    // Written only by the defragmenter thread.
+    private volatile long passes;
+    private volatile int slot = -1;
+    private volatile int fragmentedFiles;
+    private volatile long movedFiles;
+    private volatile long movedBlocks;
+
+    Defragmenter(FileSystemManager fs, long bytesPerSecond, long intervalMillis) {
+        if (bytesPerSecond <= 0) throw new IllegalArgumentException("Invalid defragmentation rate: " + bytesPerSecond);
+        this.fs = fs;
+        this.bytesPerSecond = bytesPerSecond;
+        this.intervalMillis = intervalMillis;
+        thread = new Thread(this, "defragmenter");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Abandons the file being copied (its copy is thrown away) and waits for the thread to finish.
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (pause(TimeUnit.MILLISECONDS.toNanos(intervalMillis))) {
+            try {
+                pass();
+            } catch (Exception e) {
+                Log.warn("Defragmentation pass failed: %s", e.getMessage());
+            } finally {
+                slot = -1;
+            }
+        }
+    }
+
+    private void pass() throws Exception {
+        long start = System.nanoTime();
+        int fragmented = 0;
+        int moved = 0;
+        int blocks = 0;
+        // Files created during the pass wait for the next one; those deleted are skipped by relocate.
+        InodeView v = fs.currentView();
+        for (InodeView.Entry e = v.ceiling(0); e != null && !isStopped(); e = v.ceiling(e.getSlot() + 1)) {
+            slot = e.getSlot();
+            if (e.getFirstBlock() == InodeTable.NO_BLOCK) continue;
+            if (fs.countExtents(e.getSlot(), e.getName()) <= 1) continue;
+            fragmented++;
+            int relocated = fs.relocate(e.getSlot(), e.getName(), this);
+            if (relocated == 0) continue;
+            moved++;
+            blocks += relocated;
+            movedFiles++;
+            movedBlocks += relocated;
+            if (!pace(SWITCH_COST_BYTES)) break;
+        }
+        if (isStopped()) return;
+        fragmentedFiles = fragmented;
+        passes++;
+        if (fragmented > 0)
+            Log.info("Defragmentation pass %d: moved %d of %d fragmented files (%d blocks) in %d ms", passes, moved,
+                    fragmented, blocks, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Called after every chunk copied; waits as long as it takes to keep to bytesPerSecond. Returns false
+    // once stop() has been called, to abandon the file being copied.
+    boolean pace(int bytes) {
+        long now = System.nanoTime();
+        // Time left unused (e.g. between passes) is not saved up for a burst later.
+        if (nextChunkNanos < now) nextChunkNanos = now;
+        nextChunkNanos += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        return pause(nextChunkNanos - now);
+    }
+
+    // Waits for nanos unless stopped first, and returns whether it was not.
+    private synchronized boolean pause(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        try {
+            for (long left = nanos; !stopped && left > 0; left = deadline - System.nanoTime())
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+        } catch (InterruptedException e) {
+            stopped = true;
+        }
+        return !stopped;
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    long getPasses() {
+        return passes;
+    }
+
+    // How far the pass under way is through the inode slots, in percent; 100 between passes.
+    int getProgress() {
+        int current = slot;
+        return current < 0 ? 100 : (int) ((long) current * 100 / fs.getMaxFiles());
+    }
+
+    // Files the last complete pass found split over more than one extent (moved or not).
+    int getFragmentedFiles() {
+        return fragmentedFiles;
+    }
+
+    long getMovedFiles() {
+        return movedFiles;
+    }
+
+    long getMovedBlocks() {
+        return movedBlocks;
+    }
+}
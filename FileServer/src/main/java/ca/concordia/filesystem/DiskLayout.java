@@ -0,0 +1,128 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.InodeTable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Where everything lives on the virtual disk, in order:
+//   superblock | inode records | FNode next pointers (one per block) | free-block bitmap | data blocks
+// All metadata sits in front of the data region so it can be loaded with a single read at mount.
+// Version 3 made inode records 64 bytes so files of up to 44 bytes are stored inside them; version 2
+// disks are still mounted, with 20-byte records that only inline empty files. Version 4 records can have
+// flags (see InodeTable), which older versions would ignore; version 3 disks keep them all 0.
+class DiskLayout {
+
+    static final int MAGIC = 0x46535331; // "FSS1"
+    static final int VERSION = 4;
+    static final int SUPERBLOCK_SIZE = 64;
+    static final int NAME_LENGTH = 11;
+    // name (11 bytes) | flags (1) | size (int) | first block (int, InodeTable.NO_BLOCK if inline) | inline data,
+    // or how a block file with flags is stored
+    static final int ENTRY_HEADER_SIZE = 20;
+    static final int ENTRY_SIZE = 64;
+    static final int NODE_SIZE = 4;
+    static final int END_OF_CHAIN = -1;
+
+    final int version;
+    final int entrySize;
+    final int inlineCapacity;
+    final int blockSize;
+    final int maxFiles;
+    final int maxBlocks;
+    final long entryOffset;
+    final long nodeOffset;
+    final long bitmapOffset;
+    final long dataOffset;
+
+    DiskLayout(int blockSize, int maxFiles, int maxBlocks) {
+        this(VERSION, blockSize, maxFiles, maxBlocks);
+    }
+
+    private DiskLayout(int version, int blockSize, int maxFiles, int maxBlocks) {
+        this.version = version;
+        this.entrySize = version == 2 ? ENTRY_HEADER_SIZE : ENTRY_SIZE;
+        this.inlineCapacity = entrySize - ENTRY_HEADER_SIZE;
+        this.blockSize = blockSize;
+        this.maxFiles = maxFiles;
+        this.maxBlocks = maxBlocks;
+        entryOffset = SUPERBLOCK_SIZE;
+        nodeOffset = entryOffset + (long) maxFiles * entrySize;
+        bitmapOffset = nodeOffset + (long) maxBlocks * NODE_SIZE;
+        long metadataEnd = bitmapOffset + (long) bitmapWords() * Long.BYTES;
+        dataOffset = (metadataEnd + blockSize - 1) / blockSize * blockSize;
+    }
+
+    // The layout for a blank disk: as many blocks as fit after the metadata they need.
+    static DiskLayout forDisk(long totalSize, int blockSize, int maxFiles) throws IOException {
+        long fixed = SUPERBLOCK_SIZE + (long) maxFiles * ENTRY_SIZE;
+        long perBlock = blockSize + NODE_SIZE;
+        long maxBlocks = Math.min(Integer.MAX_VALUE, Math.max(0, (totalSize - fixed) / perBlock));
+        while (maxBlocks > 0 && new DiskLayout(blockSize, maxFiles, (int) maxBlocks).totalSize() > totalSize)
+            maxBlocks--;
+        if (maxBlocks == 0) throw new IOException("Disk is too small: " + totalSize + " bytes.");
+        return new DiskLayout(blockSize, maxFiles, (int) maxBlocks);
+    }
+
+    // The layout recorded in a superblock, or null if the disk has never been formatted.
+    static DiskLayout fromSuperblock(ByteBuffer superblock) throws IOException {
+        if (superblock.getInt(0) != MAGIC) return null;
+        int version = superblock.getInt(4);
+        if (version < 2 || version > VERSION) throw new IOException("Unsupported disk format version " + version + ".");
+        return new DiskLayout(version, superblock.getInt(8), superblock.getInt(12), superblock.getInt(16));
+    }
+
+    int bitmapWords() {
+        return (maxBlocks + 63) >>> 6;
+    }
+
+    long totalSize() {
+        return dataOffset + (long) maxBlocks * blockSize;
+    }
+
+    long entryPosition(int inodeIndex) {
+        return entryOffset + (long) inodeIndex * entrySize;
+    }
+
+    long nodePosition(int blockIndex) {
+        return nodeOffset + (long) blockIndex * NODE_SIZE;
+    }
+
+    long bitmapWordPosition(int blockIndex) {
+        return bitmapOffset + (long) (blockIndex >>> 6) * Long.BYTES;
+    }
+
+    long blockPosition(int blockIndex) {
+        return dataOffset + (long) blockIndex * blockSize;
+    }
+
+    byte[] encodeSuperblock() {
+        ByteBuffer bb = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+        bb.putInt(MAGIC).putInt(version).putInt(blockSize).putInt(maxFiles).putInt(maxBlocks);
+        bb.putLong(entryOffset).putLong(nodeOffset).putLong(bitmapOffset).putLong(dataOffset);
+        return bb.array();
+    }
+
+    // The record of a slot as it is in table; all zero for a free slot.
+    byte[] encodeEntry(InodeTable table, int slot) {
+        return encodeEntry(table, slot, table.getFirstBlock(slot));
+    }
+
+    // The same, with the file's blocks starting at firstBlock instead.
+    byte[] encodeEntry(InodeTable table, int slot, int firstBlock) {
+        byte[] record = new byte[entrySize];
+        if (!table.isUsed(slot)) return record;
+        table.copyName(slot, record, 0);
+        record[NAME_LENGTH] = (byte) table.getFlags(slot);
+        ByteBuffer.wrap(record).putInt(NAME_LENGTH + 1, table.getSize(slot)).putInt(NAME_LENGTH + 5, firstBlock);
+        if (firstBlock == InodeTable.NO_BLOCK || table.getFlags(slot) != 0) table.copyInline(slot, record, ENTRY_HEADER_SIZE);
+        return record;
+    }
+
+    // Loads the record at position into slot; a free slot (an empty name) is left as it is.
+    void decodeEntry(byte[] metadata, int position, InodeTable table, int slot) {
+        if (metadata[position] == 0) return;
+        ByteBuffer bb = ByteBuffer.wrap(metadata);
+        table.load(slot, metadata, position, metadata[position + NAME_LENGTH], bb.getInt(position + NAME_LENGTH + 1),
+                bb.getInt(position + NAME_LENGTH + 5), position + ENTRY_HEADER_SIZE);
+    }
+}
@@ -0,0 +1,12 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+
+// Receives a file streamed out of the FileSystemManager: begin() with the size, then the
+// contents in order through a reused buffer that must not be kept after write() returns.
+public interface FileSink {
+
+    void begin(int size) throws IOException;
+
+    void write(byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,99 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+
+// What the server needs from a file system: a single FileSystemManager on one disk, or a
+// ShardedFileSystem spreading the files over several of them.
+public interface FileSystem {
+
+    void createFile(String fileName) throws Exception;
+
+    void writeFile(String fileName, String data) throws Exception;
+
+    void writeFile(String fileName, InputStream in, int length) throws Exception;
+
+    // Range writes and reads only touch the blocks the range falls in; writes return the new size.
+    int writeFile(String fileName, int offset, String data) throws Exception;
+
+    int appendFile(String fileName, String data) throws Exception;
+
+    String readFile(String fileName) throws Exception;
+
+    int readFile(String fileName, FileSink sink) throws Exception;
+
+    int readFile(String fileName, int offset, int length, FileSink sink) throws Exception;
+
+    int transferFile(String fileName, FileSink sink, WritableByteChannel target) throws Exception;
+
+    void deleteFile(String fileName) throws Exception;
+
+    Exception[] applyBatch(List<BatchOperation> operations) throws IOException;
+
+    int listFiles(String prefix, int cursor, int limit, ListSink sink) throws Exception;
+
+    int createSnapshot(String name) throws Exception;
+
+    void dropSnapshot(String name) throws Exception;
+
+    String readSnapshotFile(String snapshotName, String fileName) throws Exception;
+
+    int listSnapshotFiles(String snapshotName, String prefix, int cursor, int limit, ListSink sink) throws Exception;
+
+    Map<String, Integer> getSnapshots();
+
+    int getSnapshotCount();
+
+    long getViewVersion();
+
+    int getShardCount();
+
+    int getMaxFiles();
+
+    int getMaxBlocks();
+
+    int getFreeInodes();
+
+    int getFreeBlocks();
+
+    // Background defragmentation (0, or 100 for the progress, while none runs).
+    long getDefragPasses();
+
+    int getDefragProgress();
+
+    int getFragmentedFiles();
+
+    long getDefragMovedFiles();
+
+    long getDefragMovedBlocks();
+
+    // Compact storage: blocks the files would take without it, and what it costs.
+    long getLogicalBlocks();
+
+    long getDedupHits();
+
+    long getCodecOps();
+
+    long getCodecNanos();
+
+    // Write-ahead journal: transactions committed, the fsyncs that made them durable and checkpoints
+    // (all 0 without a journal).
+    long getJournalCommits();
+
+    long getJournalSyncs();
+
+    long getJournalCheckpoints();
+
+    long getMetadataLockContentions();
+
+    long getMetadataLockWaitNanos();
+
+    long getFileLockContentions();
+
+    long getFileLockWaitNanos();
+
+    void close() throws IOException;
+}
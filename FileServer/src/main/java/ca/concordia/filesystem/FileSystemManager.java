@@ -1,162 +1,1731 @@
 package ca.concordia.filesystem;
 
-import ca.concordia.filesystem.datastructures.FEntry;
+import ca.concordia.filesystem.datastructures.BlockBitmap;
+import ca.concordia.filesystem.datastructures.FileIndex;
+import ca.concordia.filesystem.datastructures.InodeTable;
+import ca.concordia.filesystem.datastructures.InodeView;
+import ca.concordia.filesystem.storage.BlockStore;
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.Lz4;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.filesystem.storage.Transaction;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.TimedLock;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class FileSystemManager {
+public class FileSystemManager implements FileSystem {
 
-    private static final int MAXFILES = 5;
-    private static final int MAXBLOCKS = 10;
-    private static final int BLOCK_SIZE = 128;
+    public static final int DEFAULT_MAXFILES = 5;
+    public static final int DEFAULT_BLOCK_SIZE = 128;
+    // Upper bound on the buffer used by the streaming read/write paths, whatever the file size.
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    // Extents shorter than this are copied through a buffer; the sendfile setup is not worth it.
+    private static final int ZERO_COPY_MIN_BYTES = 16 * 1024;
+    // With compact storage on, a streamed write of up to this many bytes is buffered so it can be
+    // compressed; longer ones are hashed as they arrive and stored uncompressed.
+    private static final int COMPACT_BUFFER_LIMIT = 1024 * 1024;
 
-    private final RandomAccessFile disk;
-    private final ReentrantLock globalLock = new ReentrantLock();
-    private final FEntry[] inodeTable;
-    private final boolean[] freeBlockList;
+    private final BlockStore disk;
+    // Write-ahead journal every metadata change (and in-place data write) goes through; null to
+    // update the disk directly, without crash consistency.
+    private final Journal journal;
+    private final DiskLayout layout;
+    private final int maxFiles;
+    private final int maxBlocks;
+    private final int blockSize;
+    // Guards inodeTable lookups/slot changes and the block allocator; held only briefly.
+    private final TimedLock metadataLock = new TimedLock();
+    // One lock per inode slot. A slot is only (re)assigned while holding its write lock.
+    private final ReentrantReadWriteLock[] fileLocks;
+    private final LongAdder fileLockContentions = new LongAdder();
+    private final LongAdder fileLockWaitNanos = new LongAdder();
+    private final InodeTable inodeTable;
+    private final FileIndex fileIndex;
+    // Stack of free inode slots; the lowest slot is on top after mount.
+    private final int[] freeInodes;
+    private int freeInodeCount;
+    // nextBlock[b] is the block after b in its file's chain (the on-disk FNode of b).
+    private final int[] nextBlock;
+    private final BlockBitmap blockBitmap;
+    // What lock-free readers see: the inode table as of the last committed change (see publish).
+    private final AtomicReference<InodeView> view = new AtomicReference<>();
+    // Changes hold the read side while they run, so SNAPSHOT (the write side) finds nothing half done.
+    private final ReentrantReadWriteLock snapshotGate = new ReentrantReadWriteLock();
+    // Only changed under the snapshotGate write lock.
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<>();
+    // How many snapshots and streaming readers (see openRead) hold each block; changed under metadataLock.
+    // A reader pins a file's blocks under the file's lock, so its writer always sees those pins. Held blocks
+    // the files let go of wait in orphaned (guarded by metadataLock) until the last holder lets go of them.
+    private final int[] pins;
+    private final BitSet orphaned = new BitSet();
+    // How many files use each block, once blocks can be shared (compact storage is on, or a disk written
+    // with it was mounted); null while no block belongs to more than one file. Guarded by metadataLock.
+    private int[] refs;
+    // Set by enableCompactStorage. The chains of HASHED files by content hash, and the other way round by
+    // first block, for the files written since mount or found in the records; guarded by metadataLock.
+    private volatile boolean compact;
+    private final Map<ByteBuffer, StoredChain> chainsByHash = new HashMap<>();
+    private final Map<Integer, ByteBuffer> hashesByHead = new HashMap<>();
+    private final LongAdder dedupHits = new LongAdder();
+    private final LongAdder codecOps = new LongAdder();
+    private final LongAdder codecNanos = new LongAdder();
+    // Null unless startDefragmenter has been called.
+    private volatile Defragmenter defragmenter;
 
     public FileSystemManager(String filename, int totalSize) {
+        this(openDisk(filename, totalSize), DEFAULT_BLOCK_SIZE, DEFAULT_MAXFILES);
+        Log.info("The file system has been initialized: %s", filename);
+    }
+
+    public FileSystemManager(BlockStore disk) {
+        this(disk, DEFAULT_BLOCK_SIZE, DEFAULT_MAXFILES);
+    }
+
+    // blockSize and maxFiles only apply when a blank disk is formatted, and the block count is whatever
+    // fits in the disk. An already formatted disk is always mounted with the geometry in its superblock.
+    public FileSystemManager(BlockStore disk, int blockSize, int maxFiles) {
+        this(disk, null, blockSize, maxFiles);
+    }
+
+    // The journal must already be open on the same disk, which replays it before the metadata is read.
+    public FileSystemManager(BlockStore disk, Journal journal, int blockSize, int maxFiles) {
+        this.disk = disk;
+        this.journal = journal;
+        try {
+            byte[] superblock = new byte[DiskLayout.SUPERBLOCK_SIZE];
+            disk.read(0, superblock, 0, superblock.length);
+            DiskLayout existing = DiskLayout.fromSuperblock(ByteBuffer.wrap(superblock));
+            layout = existing != null ? existing : DiskLayout.forDisk(disk.size(), blockSize, maxFiles);
+            this.maxFiles = layout.maxFiles;
+            this.maxBlocks = layout.maxBlocks;
+            this.blockSize = layout.blockSize;
+            inodeTable = new InodeTable(maxFiles, DiskLayout.NAME_LENGTH, layout.inlineCapacity);
+            fileIndex = new FileIndex(inodeTable);
+            freeInodes = new int[maxFiles];
+            fileLocks = new ReentrantReadWriteLock[maxFiles];
+            for (int i = 0; i < maxFiles; i++) fileLocks[i] = new ReentrantReadWriteLock();
+            nextBlock = new int[maxBlocks];
+            pins = new int[maxBlocks];
+            blockBitmap = new BlockBitmap(maxBlocks);
+            if (existing == null) format();
+            else mount();
+            for (int i = maxFiles - 1; i >= 0; i--)
+                if (!inodeTable.isUsed(i)) freeInodes[freeInodeCount++] = i;
+            view.set(InodeView.of(inodeTable));
+        } catch (IOException e) {
+            throw new RuntimeException("Error: the file system failed to initialize", e);
+        }
+    }
+
+    private static BlockStore openDisk(String filename, int totalSize) {
         try {
-            disk = new RandomAccessFile(filename, "rw");
-            if (disk.length() < totalSize) disk.setLength(totalSize);
-            inodeTable = new FEntry[MAXFILES];
-            freeBlockList = new boolean[MAXBLOCKS];
-            for (int i = 0; i < MAXBLOCKS; i++) freeBlockList[i] = true;
-            System.out.println("The file system has been initialized: " + filename);
+            return new RandomAccessBlockStore(filename, totalSize, ForcePolicy.NEVER);
         } catch (IOException e) {
             throw new RuntimeException("Error: the file system failed to initialize", e);
         }
     }
 
-    private FEntry findFile(String fileName) {
-        for (FEntry entry : inodeTable)
-            if (entry != null && fileName.equals(entry.getFilename()))
-                return entry;
-        return null;
+    // Starts moving fragmented files into contiguous extents in the background, copying at most
+    // bytesPerSecond and starting a pass every intervalMillis (see Defragmenter).
+    public synchronized void startDefragmenter(long bytesPerSecond, long intervalMillis) {
+        if (defragmenter != null) return;
+        defragmenter = new Defragmenter(this, bytesPerSecond, intervalMillis);
+        defragmenter.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Defragmenter d = defragmenter;
+        if (d != null) d.stop();
+        try {
+            if (journal != null) journal.close();
+        } finally {
+            disk.close();
+        }
+    }
+
+    // Loads the inode table, FNode chains and bitmap with one sequential read.
+    private void mount() throws IOException {
+        if (disk.size() < layout.totalSize())
+            throw new IOException("Disk is too small: " + disk.size() + " bytes, need " + layout.totalSize());
+        byte[] metadata = new byte[(int) layout.dataOffset];
+        disk.read(0, metadata, 0, metadata.length);
+        ByteBuffer bb = ByteBuffer.wrap(metadata);
+        for (int i = 0; i < maxFiles; i++) {
+            layout.decodeEntry(metadata, (int) layout.entryPosition(i), inodeTable, i);
+            if (inodeTable.isUsed(i)) fileIndex.put(i);
+        }
+        for (int i = 0; i < maxBlocks; i++)
+            nextBlock[i] = bb.getInt((int) layout.nodePosition(i));
+        for (int w = 0; w < blockBitmap.wordCount(); w++)
+            blockBitmap.setWord(w, bb.getLong((int) layout.bitmapWordPosition(w << 6)));
+        reclaimBlocks();
+    }
+
+    // Rebuilds the bitmap from the files' chains. Freed blocks are released without waiting for the
+    // journal, so after a crash some may still be marked in use; this returns them to the allocator.
+    private void reclaimBlocks() throws IOException {
+        long[] used = new long[blockBitmap.wordCount()];
+        int[] counts = new int[maxBlocks];
+        boolean shared = false;
+        for (int inodeIndex = 0; inodeIndex < maxFiles; inodeIndex++) {
+            if (!inodeTable.isUsed(inodeIndex)) continue;
+            for (int blockIndex : chain(inodeIndex)) {
+                used[blockIndex >>> 6] |= 1L << blockIndex;
+                shared |= ++counts[blockIndex] > 1;
+            }
+        }
+        // Files written with compact storage on may share chains; those must not be written over in place.
+        if (shared) refs = counts;
+        Transaction txn = new Transaction();
+        int reclaimed = 0;
+        for (int w = 0; w < used.length; w++) {
+            if (used[w] == blockBitmap.word(w)) continue;
+            reclaimed += Long.bitCount(blockBitmap.word(w) & ~used[w]);
+            blockBitmap.setWord(w, used[w]);
+            txn.write(layout.bitmapWordPosition(w << 6), ByteBuffer.allocate(Long.BYTES).putLong(used[w]).array());
+        }
+        if (txn.isEmpty()) return;
+        txn.apply(disk);
+        disk.force();
+        Log.info("Reclaimed %d unreferenced blocks.", reclaimed);
+    }
+
+    // Turns on compact storage: from then on a file's blocks hold it compressed (Lz4) whenever that takes
+    // fewer blocks, and files with the same contents share a single chain, found by a SHA-256 hash of the
+    // contents that is kept in each file's record. A shared block is only freed when the last file using it
+    // lets go of it. Needs a disk formatted by this version; call it before the file system is used.
+    public void enableCompactStorage() throws IOException {
+        if (layout.version < DiskLayout.VERSION || layout.inlineCapacity < InodeTable.DESCRIPTOR_SIZE) {
+            Log.warn("Compact storage needs a disk of format version %d, this one is version %d.", DiskLayout.VERSION,
+                    layout.version);
+            return;
+        }
+        metadataLock.lock();
+        try {
+            if (refs == null) {
+                refs = new int[maxBlocks];
+                for (int inodeIndex = 0; inodeIndex < maxFiles; inodeIndex++)
+                    if (inodeTable.isUsed(inodeIndex)) for (int blockIndex : chain(inodeIndex)) refs[blockIndex]++;
+            }
+            for (int inodeIndex = 0; inodeIndex < maxFiles; inodeIndex++)
+                if (inodeTable.isUsed(inodeIndex)) register(inodeIndex);
+            compact = true;
+            Log.info("Compact storage enabled: %d distinct contents indexed", chainsByHash.size());
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    private void format() throws IOException {
+        byte[] metadata = new byte[(int) layout.dataOffset];
+        byte[] superblock = layout.encodeSuperblock();
+        System.arraycopy(superblock, 0, metadata, 0, superblock.length);
+        disk.write(0, metadata, 0, metadata.length);
+        // Journaled changes assume a formatted disk underneath, so the format itself must not be lost.
+        disk.force();
+    }
+
+    // Stages the slot's record as it now is in inodeTable, inline data included.
+    private void writeEntry(Transaction txn, int inodeIndex) {
+        txn.write(layout.entryPosition(inodeIndex), layout.encodeEntry(inodeTable, inodeIndex));
+    }
+
+    private void writeNode(Transaction txn, int blockIndex) {
+        byte[] node = ByteBuffer.allocate(DiskLayout.NODE_SIZE).putInt(nextBlock[blockIndex]).array();
+        txn.write(layout.nodePosition(blockIndex), node);
+    }
+
+    // Adds the current value of the 64-bit bitmap words holding the given blocks. Callers hold metadataLock.
+    private void writeBitmapWords(Transaction txn, int[] blocks) {
+        int lastWord = -1;
+        for (int blockIndex : blocks) {
+            int wordIndex = blockIndex >>> 6;
+            if (wordIndex == lastWord) continue;
+            lastWord = wordIndex;
+            byte[] bytes = ByteBuffer.allocate(Long.BYTES).putLong(blockBitmap.word(wordIndex)).array();
+            txn.write(layout.bitmapWordPosition(blockIndex), bytes);
+        }
+    }
+
+    // Makes txn durable and applies it, together with the bitmap words of the blocks it allocated.
+    // Those are captured under metadataLock as the record is queued, so bitmap images reach the
+    // journal in the order the bitmap changed.
+    private void commit(Transaction txn, int[] allocated) throws IOException {
+        if (journal == null) {
+            txn.apply(disk);
+            if (allocated.length == 0) return;
+            metadataLock.lock();
+            try {
+                Transaction bitmap = new Transaction();
+                writeBitmapWords(bitmap, allocated);
+                bitmap.apply(disk);
+            } finally {
+                metadataLock.unlock();
+            }
+            return;
+        }
+        long seq;
+        metadataLock.lock();
+        try {
+            writeBitmapWords(txn, allocated);
+            seq = journal.append(txn);
+        } finally {
+            metadataLock.unlock();
+        }
+        journal.commit(seq);
     }
 
     private int findInodeIndex(String fileName) {
-        for (int i = 0; i < inodeTable.length; i++) {
-            FEntry entry = inodeTable[i];
-            if (entry != null && fileName.equals(entry.getFilename()))
-                return i;
+        return fileIndex.get(fileName);
+    }
+
+    // Allocates count blocks, as one contiguous extent when possible so the file can be read
+    // and written sequentially. hint is the preferred first block (e.g. right after the file's tail).
+    private int[] allocateBlocks(int count, int hint) throws Exception {
+        metadataLock.lock();
+        try {
+            if (count > blockBitmap.freeCount()) throw new Exception("No free disk block available.");
+            int[] blocks = new int[count];
+            int start = blockBitmap.findRun(count, hint);
+            if (start >= 0) {
+                for (int i = 0; i < count; i++) blocks[i] = start + i;
+            } else {
+                int blockIndex = -1;
+                for (int i = 0; i < count; i++) blocks[i] = blockIndex = blockBitmap.nextFree(blockIndex + 1);
+            }
+            for (int blockIndex : blocks) blockBitmap.allocate(blockIndex);
+            if (refs != null) for (int blockIndex : blocks) refs[blockIndex] = 1;
+            return blocks;
+        } finally {
+            metadataLock.unlock();
         }
-        return -1;
     }
 
-    private int allocateBlock() throws Exception {
-        for (int i = 0; i < MAXBLOCKS; i++) {
-            if (freeBlockList[i]) {
-                freeBlockList[i] = false;
-                return i;
+    // Returns blocks to the allocator. Only called once the transaction that stopped referencing them
+    // has been applied, so a crash can never leave a live file pointing at a free block.
+    private void freeBlocks(int[] blocks) throws IOException {
+        metadataLock.lock();
+        try {
+            int[] held = pinned(blocks);
+            for (int blockIndex : held) orphaned.set(blockIndex);
+            if (held.length > 0) blocks = unpinned(blocks);
+            if (blocks.length == 0) return;
+            for (int blockIndex : blocks) blockBitmap.free(blockIndex);
+            Transaction txn = new Transaction();
+            writeBitmapWords(txn, blocks);
+            // Not waited for: if a crash loses it the blocks merely stay allocated.
+            if (journal == null) txn.apply(disk);
+            else journal.append(txn);
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    // The blocks a snapshot or reader holds, and the rest. Callers hold the lock of the file the blocks
+    // belong to, or metadataLock.
+    private int[] pinned(int[] blocks) {
+        return Arrays.stream(blocks).filter(b -> pins[b] > 0).toArray();
+    }
+
+    private int[] unpinned(int[] blocks) {
+        return Arrays.stream(blocks).filter(b -> pins[b] == 0).toArray();
+    }
+
+    private void pin(int[] blocks) {
+        metadataLock.lock();
+        try {
+            for (int blockIndex : blocks) pins[blockIndex]++;
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    // Lets go of one hold on each of the blocks and returns those that no file uses and nothing holds any
+    // more, for freeUnpinned.
+    private int[] unpin(int[] blocks) {
+        metadataLock.lock();
+        try {
+            BitSet released = new BitSet();
+            for (int blockIndex : blocks) if (--pins[blockIndex] == 0 && orphaned.get(blockIndex)) released.set(blockIndex);
+            orphaned.andNot(released);
+            return released.stream().toArray();
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    // Zeroes and frees blocks unpin released. Callers hold either side of snapshotGate.
+    private int freeUnpinned(int[] released) throws IOException {
+        if (released.length == 0) return 0;
+        Transaction txn = new Transaction();
+        writeBlocks(txn, released, new byte[0]);
+        commit(txn, new int[0]);
+        freeBlocks(released);
+        return released.length;
+    }
+
+    // A free contiguous extent of count blocks, as low on the disk as there is one, or null if there is none.
+    private int[] allocateExtent(int count) {
+        metadataLock.lock();
+        try {
+            int start = blockBitmap.findFirstRun(count);
+            if (start < 0) return null;
+            int[] blocks = new int[count];
+            for (int i = 0; i < count; i++) {
+                blocks[i] = start + i;
+                blockBitmap.allocate(start + i);
+                if (refs != null) refs[start + i] = 1;
             }
+            return blocks;
+        } finally {
+            metadataLock.unlock();
         }
-        throw new Exception("No free disk block available.");
     }
 
-    public void createFile(String fileName) throws Exception {
-        globalLock.lock();
+    // Drops one file's use of the blocks and returns those no file uses any more, which the caller frees
+    // (with freeBlocks, or through an update) once nothing on disk points at them.
+    private int[] release(int[] blocks) {
+        metadataLock.lock();
         try {
-            if (fileName.length() > 11) {
-                throw new Exception("Filename must be 11 characters or less as per assignment instructions.");
+            if (refs == null) return blocks;
+            int[] unused = new int[blocks.length];
+            int n = 0;
+            for (int blockIndex : blocks) {
+                if (--refs[blockIndex] > 0) continue;
+                unused[n++] = blockIndex;
+                ByteBuffer hash = hashesByHead.remove(blockIndex);
+                if (hash != null) chainsByHash.remove(hash);
             }
-            if (findFile(fileName) != null) throw new Exception("File already exists.");
-            int inodeIndex = -1;
-            for (int i = 0; i < MAXFILES; i++) {
-                if (inodeTable[i] == null) {
-                    inodeIndex = i;
-                    break;
+            return n == blocks.length ? blocks : Arrays.copyOf(unused, n);
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    // Whether another file uses any of the blocks too.
+    private boolean shared(int[] blocks) {
+        metadataLock.lock();
+        try {
+            if (refs == null) return false;
+            for (int blockIndex : blocks) if (refs[blockIndex] > 1) return true;
+            return false;
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    // The chain of a file with these contents, now used by one more file, or null if there is none.
+    private StoredChain share(byte[] hash) throws IOException {
+        metadataLock.lock();
+        try {
+            StoredChain stored = chainsByHash.get(ByteBuffer.wrap(hash));
+            if (stored == null) return null;
+            for (int blockIndex : chain(stored.firstBlock, stored.storedSize)) refs[blockIndex]++;
+            return stored;
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    // Makes the slot's chain findable by its contents, unless the file is not HASHED or a chain with the
+    // same contents already is. Callers hold metadataLock, and the chain must be on disk.
+    private void register(int inodeIndex) {
+        byte[] hash = inodeTable.getHash(inodeIndex);
+        if (hash == null || inodeTable.isInline(inodeIndex)) return;
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        if (chainsByHash.containsKey(key)) return;
+        int firstBlock = inodeTable.getFirstBlock(inodeIndex);
+        chainsByHash.put(key, new StoredChain(firstBlock, inodeTable.getFlags(inodeIndex) & InodeTable.COMPRESSED,
+                inodeTable.getStoredSize(inodeIndex)));
+        hashesByHead.put(firstBlock, key);
+    }
+
+    // Registers the chains an update wrote, once it is committed. Callers hold the slots' locks.
+    private void register(Update update) {
+        if (update.hashedSlots.length == 0) return;
+        metadataLock.lock();
+        try {
+            for (int inodeIndex : update.hashedSlots) if (inodeTable.isUsed(inodeIndex)) register(inodeIndex);
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int blocksFor(int size) {
+        return Math.max(1, (size + blockSize - 1) / blockSize);
+    }
+
+    // The blocks of a file in order, following its FNode chain; none for an inline file. Callers hold
+    // the file's lock.
+    private int[] chain(int inodeIndex) throws IOException {
+        if (inodeTable.isInline(inodeIndex)) return new int[0];
+        try {
+            return chain(inodeTable.getFirstBlock(inodeIndex), inodeTable.getStoredSize(inodeIndex));
+        } catch (IOException e) {
+            throw new IOException("Corrupted block chain in file " + inodeTable.getName(inodeIndex));
+        }
+    }
+
+    // The blocks holding storedSize bytes from firstBlock on.
+    private int[] chain(int firstBlock, int storedSize) throws IOException {
+        int[] blocks = new int[blocksFor(storedSize)];
+        int blockIndex = firstBlock;
+        for (int i = 0; i < blocks.length; i++) {
+            if (blockIndex < 0 || blockIndex >= maxBlocks) throw new IOException("Corrupted block chain.");
+            blocks[i] = blockIndex;
+            blockIndex = nextBlock[blockIndex];
+        }
+        return blocks;
+    }
+
+    // How many runs of consecutive blocks the chain is made of.
+    private static int extents(int[] blocks) {
+        int count = blocks.length > 0 ? 1 : 0;
+        for (int i = 1; i < blocks.length; i++) if (blocks[i] != blocks[i - 1] + 1) count++;
+        return count;
+    }
+
+    // Points each block at the next one and persists only the FNodes that changed.
+    private void linkChain(Transaction txn, int[] blocks) {
+        for (int i = 0; i < blocks.length; i++) {
+            int next = i + 1 < blocks.length ? blocks[i + 1] : DiskLayout.END_OF_CHAIN;
+            if (nextBlock[blocks[i]] != next) {
+                nextBlock[blocks[i]] = next;
+                writeNode(txn, blocks[i]);
+            }
+        }
+    }
+
+    // Writes data across the blocks, one change per contiguous run, zero-padding the last block.
+    private void writeBlocks(Transaction txn, int[] blocks, byte[] data) {
+        int i = 0;
+        while (i < blocks.length) {
+            int j = i + 1;
+            while (j < blocks.length && blocks[j] == blocks[j - 1] + 1) j++;
+            int from = i * blockSize;
+            int length = (j - i) * blockSize;
+            long position = layout.blockPosition(blocks[i]);
+            if (from >= data.length) {
+                txn.zero(position, length);
+            } else if (from + length <= data.length) {
+                txn.write(position, data, from, length);
+            } else {
+                byte[] run = new byte[length];
+                System.arraycopy(data, from, run, 0, data.length - from);
+                txn.write(position, run);
+            }
+            i = j;
+        }
+    }
+
+    // Reads size bytes from the blocks, one disk read per contiguous run.
+    private byte[] readBlocks(int[] blocks, int size) throws IOException {
+        byte[] data = new byte[size];
+        int i = 0;
+        while (i < blocks.length && i * blockSize < size) {
+            int j = i + 1;
+            while (j < blocks.length && blocks[j] == blocks[j - 1] + 1) j++;
+            int from = i * blockSize;
+            int length = Math.min((j - i) * blockSize, size - from);
+            disk.read(layout.blockPosition(blocks[i]), data, from, length);
+            i = j;
+        }
+        return data;
+    }
+
+    // A block file's contents, decompressed if need be. Callers hold the file's lock.
+    private byte[] readContents(int inodeIndex) throws IOException {
+        byte[] stored = readBlocks(chain(inodeIndex), inodeTable.getStoredSize(inodeIndex));
+        return isCompressed(inodeIndex) ? decompress(stored, inodeTable.getSize(inodeIndex)) : stored;
+    }
+
+    private byte[] decompress(byte[] stored, int size) throws IOException {
+        long start = System.nanoTime();
+        byte[] data = Lz4.decompress(stored, stored.length, size);
+        codecNanos.add(System.nanoTime() - start);
+        codecOps.increment();
+        return data;
+    }
+
+    private boolean isCompressed(int inodeIndex) {
+        return (inodeTable.getFlags(inodeIndex) & InodeTable.COMPRESSED) != 0;
+    }
+
+    private byte[] streamBuffer() {
+        return new byte[Math.max(blockSize, STREAM_BUFFER_SIZE / blockSize * blockSize)];
+    }
+
+    // Lock-free: reads the published view. Callers lock the slot and re-check it against inodeTable.
+    private int lookupInodeIndex(String fileName) {
+        InodeView.Entry entry = view.get().find(fileName);
+        return entry == null ? -1 : entry.getSlot();
+    }
+
+    // Locks the inode slot holding fileName and returns its index, or -1 if there is no such file.
+    // The slot may be reassigned between the lookup and the lock, so it is re-checked once held.
+    private int lockFile(String fileName, boolean exclusive) {
+        while (true) {
+            int inodeIndex = lookupInodeIndex(fileName);
+            if (inodeIndex == -1) return -1;
+            Lock lock = fileLock(inodeIndex, exclusive);
+            acquire(lock);
+            if (inodeTable.hasName(inodeIndex, fileName)) return inodeIndex;
+            lock.unlock();
+        }
+    }
+
+    // Takes a file lock, timing the wait when it is contended.
+    private void acquire(Lock lock) {
+        if (lock.tryLock()) return;
+        long start = System.nanoTime();
+        lock.lock();
+        fileLockWaitNanos.add(System.nanoTime() - start);
+        fileLockContentions.increment();
+    }
+
+    private Lock fileLock(int inodeIndex, boolean exclusive) {
+        ReentrantReadWriteLock rw = fileLocks[inodeIndex];
+        return exclusive ? rw.writeLock() : rw.readLock();
+    }
+
+    // Creates fileName in memory and stages its disk changes. Callers hold metadataLock. The new slot's
+    // write lock is returned held, so the file stays out of reach until it has been committed.
+    private Lock stageCreate(Update update, String fileName) throws Exception {
+        if (fileName.isEmpty()) throw new Exception("Filename must not be empty.");
+        if (fileName.length() > 11 || fileName.getBytes(StandardCharsets.UTF_8).length > DiskLayout.NAME_LENGTH) {
+            throw new Exception("Filename must be 11 characters or less as per assignment instructions.");
+        }
+        if (findInodeIndex(fileName) != -1) throw new Exception("File already exists.");
+        if (freeInodeCount == 0) throw new Exception("No free inode available.");
+        int inodeIndex = freeInodes[--freeInodeCount];
+        // Only stale lookups (which re-check and back off) can hold a free slot's lock.
+        Lock slotLock = fileLocks[inodeIndex].writeLock();
+        slotLock.lock();
+        // An empty file is an inline one: it takes no block until it outgrows its inode record.
+        inodeTable.set(inodeIndex, fileName, 0, InodeTable.NO_BLOCK);
+        fileIndex.put(inodeIndex);
+        writeEntry(update.txn, inodeIndex);
+        update.touch(inodeIndex, fileName);
+        return slotLock;
+    }
+
+    // Overwrites the file in place, growing or shrinking its chain. Data that fits in the inode record is
+    // kept there instead, and whatever blocks the file had are given up. Callers hold the file's write lock.
+    private void stageWrite(Update update, int inodeIndex, byte[] bytes) throws Exception {
+        if (bytes.length > (long) maxBlocks * blockSize)
+            throw new Exception("File too large for the disk (" + bytes.length + " bytes).");
+        int[] oldBlocks = chain(inodeIndex);
+        update.touch(inodeIndex, inodeTable.getName(inodeIndex));
+        if (bytes.length <= inodeTable.getInlineCapacity()) {
+            inodeTable.setInline(inodeIndex, bytes, 0, bytes.length);
+            writeEntry(update.txn, inodeIndex);
+            update.freedBlocks = append(update.freedBlocks, release(oldBlocks));
+            return;
+        }
+        if (compact || shared(oldBlocks)) {
+            stageReplace(update, inodeIndex, bytes, oldBlocks);
+            return;
+        }
+        int needed = blocksFor(bytes.length);
+        int[] blocks = Arrays.copyOf(oldBlocks, needed);
+        if (needed > oldBlocks.length) {
+            int hint = oldBlocks.length > 0 ? oldBlocks[oldBlocks.length - 1] + 1 : -1;
+            int[] extra = allocateBlocks(needed - oldBlocks.length, hint);
+            System.arraycopy(extra, 0, blocks, oldBlocks.length, extra.length);
+            update.allocated = append(update.allocated, extra);
+        }
+        // Blocks a snapshot or reader holds are never written in place; the file gets fresh copies of them instead.
+        int[] held = pinned(Arrays.copyOf(oldBlocks, Math.min(needed, oldBlocks.length)));
+        if (held.length > 0) {
+            int[] copies = allocateBlocks(held.length, -1);
+            for (int i = 0, k = 0; k < held.length; i++)
+                if (blocks[i] == held[k]) blocks[i] = copies[k++];
+            update.allocated = append(update.allocated, copies);
+            update.freedBlocks = append(update.freedBlocks, release(held));
+        }
+        writeBlocks(update.txn, blocks, bytes);
+        linkChain(update.txn, blocks);
+        inodeTable.setSize(inodeIndex, bytes.length);
+        inodeTable.setFirstBlock(inodeIndex, blocks[0]);
+        inodeTable.setStored(inodeIndex, 0, 0, null);
+        writeEntry(update.txn, inodeIndex);
+        if (needed < oldBlocks.length)
+            update.freedBlocks = append(update.freedBlocks, release(Arrays.copyOfRange(oldBlocks, needed, oldBlocks.length)));
+    }
+
+    // Gives the file a chain of its own rather than writing over blocks other files may share. With compact
+    // storage on that is the chain of a file with the same contents if there is one, and otherwise a new
+    // one, holding the contents compressed if that takes fewer blocks. Callers hold the file's write lock.
+    private void stageReplace(Update update, int inodeIndex, byte[] bytes, int[] oldBlocks) throws Exception {
+        byte[] stored = bytes;
+        int flags = 0;
+        byte[] hash = null;
+        if (compact) {
+            long start = System.nanoTime();
+            hash = sha256(bytes);
+            StoredChain existing = share(hash);
+            if (existing == null) {
+                byte[] compressed = Lz4.compress(bytes);
+                if (blocksFor(compressed.length) < blocksFor(bytes.length)) {
+                    stored = compressed;
+                    flags = InodeTable.COMPRESSED;
                 }
             }
-            if (inodeIndex == -1) throw new Exception("No free inode available.");
-            int blockIndex = allocateBlock();
-            FEntry newFile = new FEntry(fileName, (short) 0, (short) blockIndex);
-            inodeTable[inodeIndex] = newFile;
-            System.out.println("File created: " + fileName + " (block " + blockIndex + ")");
+            codecNanos.add(System.nanoTime() - start);
+            codecOps.increment();
+            if (existing != null) {
+                dedupHits.increment();
+                inodeTable.setSize(inodeIndex, bytes.length);
+                inodeTable.setFirstBlock(inodeIndex, existing.firstBlock);
+                inodeTable.setStored(inodeIndex, existing.flags | InodeTable.HASHED, existing.storedSize, hash);
+                writeEntry(update.txn, inodeIndex);
+                update.freedBlocks = append(update.freedBlocks, release(oldBlocks));
+                return;
+            }
+            flags |= InodeTable.HASHED;
+            // Only findable once committed, so nobody shares blocks whose contents may not be on disk yet.
+            update.hashedSlots = append(update.hashedSlots, new int[] {inodeIndex});
+        }
+        int[] blocks = allocateBlocks(blocksFor(stored.length), -1);
+        update.allocated = append(update.allocated, blocks);
+        writeBlocks(update.txn, blocks, stored);
+        linkChain(update.txn, blocks);
+        inodeTable.setSize(inodeIndex, bytes.length);
+        inodeTable.setFirstBlock(inodeIndex, blocks[0]);
+        inodeTable.setStored(inodeIndex, flags, stored.length, hash);
+        writeEntry(update.txn, inodeIndex);
+        update.freedBlocks = append(update.freedBlocks, release(oldBlocks));
+    }
+
+    // Writes bytes over the file from offset on (offset == size appends), growing it if they run past its
+    // end. Only the blocks the range falls in are written, and of those only the first and last are read
+    // first, for the bytes the range leaves alone; blocks the file grows by go right after its tail when
+    // they are free. Inline files, and files whose blocks are compressed or may be shared, are patched in
+    // memory and rewritten whole by stageWrite instead. Callers hold the file's write lock.
+    private void stageRangeWrite(Update update, int inodeIndex, int offset, byte[] bytes) throws Exception {
+        int size = inodeTable.getSize(inodeIndex);
+        if (offset > size) throw new Exception("Offset " + offset + " is past the end of the file (" + size + " bytes).");
+        long end = (long) offset + bytes.length;
+        if (end > (long) maxBlocks * blockSize) throw new Exception("File too large for the disk (" + end + " bytes).");
+        int newSize = (int) Math.max(size, end);
+        int[] oldBlocks = chain(inodeIndex);
+        if (inodeTable.isInline(inodeIndex) || isCompressed(inodeIndex) || compact || shared(oldBlocks)) {
+            byte[] contents = inodeTable.isInline(inodeIndex) ? inodeTable.getInline(inodeIndex) : readContents(inodeIndex);
+            contents = Arrays.copyOf(contents, newSize);
+            System.arraycopy(bytes, 0, contents, offset, bytes.length);
+            stageWrite(update, inodeIndex, contents);
+            return;
+        }
+        update.touch(inodeIndex, inodeTable.getName(inodeIndex));
+        int needed = blocksFor(newSize);
+        int[] blocks = Arrays.copyOf(oldBlocks, needed);
+        if (needed > oldBlocks.length) {
+            int[] extra = allocateBlocks(needed - oldBlocks.length, oldBlocks[oldBlocks.length - 1] + 1);
+            System.arraycopy(extra, 0, blocks, oldBlocks.length, extra.length);
+            update.allocated = append(update.allocated, extra);
+        }
+        if (bytes.length > 0) {
+            int first = offset / blockSize;
+            int last = (int) ((end - 1) / blockSize);
+            // The blocks in range as they are to be; past the old end that is zeros, as writeBlocks pads.
+            byte[] run = new byte[(last - first + 1) * blockSize];
+            int runStart = first * blockSize;
+            readRange(oldBlocks, runStart, run, 0, offset - runStart);
+            int keep = (int) Math.min(size, (long) runStart + run.length) - (int) end;
+            if (keep > 0) readRange(oldBlocks, (int) end, run, (int) end - runStart, keep);
+            System.arraycopy(bytes, 0, run, offset - runStart, bytes.length);
+            // As in stageWrite, blocks a snapshot or reader holds get fresh copies instead of being written over.
+            int[] held = pinned(Arrays.copyOfRange(oldBlocks, first, Math.min(last + 1, oldBlocks.length)));
+            if (held.length > 0) {
+                int[] copies = allocateBlocks(held.length, -1);
+                for (int i = first, k = 0; k < held.length; i++)
+                    if (blocks[i] == held[k]) blocks[i] = copies[k++];
+                update.allocated = append(update.allocated, copies);
+                update.freedBlocks = append(update.freedBlocks, release(held));
+            }
+            writeBlocks(update.txn, Arrays.copyOfRange(blocks, first, last + 1), run);
+        }
+        linkChain(update.txn, blocks);
+        inodeTable.setSize(inodeIndex, newSize);
+        inodeTable.setFirstBlock(inodeIndex, blocks[0]);
+        inodeTable.setStored(inodeIndex, 0, 0, null);
+        writeEntry(update.txn, inodeIndex);
+    }
+
+    // Reads length bytes of a block file from position from on into data at offset, one disk read per
+    // contiguous run of the blocks they are in.
+    private void readRange(int[] blocks, int from, byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int i = from / blockSize;
+            int j = i + 1;
+            while (j < blocks.length && blocks[j] == blocks[j - 1] + 1) j++;
+            int chunk = Math.min(length, j * blockSize - from);
+            disk.read(layout.blockPosition(blocks[i]) + (from - i * blockSize), data, offset, chunk);
+            from += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    // Unlinks the file and stages the zeroing of its blocks. Callers hold the file's write lock.
+    private void stageDelete(Update update, int inodeIndex, String fileName) throws IOException {
+        // Blocks other files still use stay as they are.
+        int[] blocks = release(chain(inodeIndex));
+        // Blocks a snapshot or reader holds keep their contents; they are zeroed once it lets go of them.
+        writeBlocks(update.txn, unpinned(blocks), new byte[0]);
+        metadataLock.lock();
+        try {
+            fileIndex.remove(fileName);
+            inodeTable.clear(inodeIndex);
         } finally {
-            globalLock.unlock();
+            metadataLock.unlock();
         }
+        writeEntry(update.txn, inodeIndex);
+        update.freedInodes = append(update.freedInodes, new int[] {inodeIndex});
+        update.freedBlocks = append(update.freedBlocks, blocks);
+        update.touch(inodeIndex, fileName);
     }
 
+    // Makes the update's committed changes visible to lock-free readers. Called before the touched
+    // slots' locks are released, so whoever locks one of them next also finds the new view.
+    private void publish(Update update) {
+        int n = update.touchedSlots.size();
+        if (n == 0) return;
+        InodeView.Entry[] entries = new InodeView.Entry[n];
+        for (int i = 0; i < n; i++) {
+            int inodeIndex = update.touchedSlots.get(i);
+            if (!inodeTable.isUsed(inodeIndex)) continue;
+            String name = update.touchedNames.get(i);
+            if (!inodeTable.hasName(inodeIndex, name)) name = inodeTable.getName(inodeIndex);
+            entries[i] = new InodeView.Entry(name, inodeTable.getSize(inodeIndex), inodeTable.getFirstBlock(inodeIndex),
+                    inodeIndex);
+        }
+        view.updateAndGet(v -> {
+            for (int i = 0; i < n; i++) {
+                String name = update.touchedNames.get(i);
+                if (entries[i] == null || !entries[i].getName().equals(name)) v = v.without(update.touchedSlots.get(i), name);
+            }
+            for (InodeView.Entry entry : entries) if (entry != null) v = v.with(entry);
+            return v;
+        });
+    }
+
+    // Hands the slots and blocks an update gave up back to the allocators. Only called after the update
+    // is on disk (so deleted data is already zeroed) and after the slots' locks have been released.
+    private void settle(Update update) throws IOException {
+        if (update.freedInodes.length == 0 && update.freedBlocks.length == 0) return;
+        metadataLock.lock();
+        try {
+            for (int inodeIndex : update.freedInodes) freeInodes[freeInodeCount++] = inodeIndex;
+            if (update.freedBlocks.length > 0) freeBlocks(update.freedBlocks);
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    private static int[] append(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        int[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        Update update = new Update();
+        snapshotGate.readLock().lock();
+        try {
+            Lock slotLock;
+            metadataLock.lock();
+            try {
+                slotLock = stageCreate(update, fileName);
+            } finally {
+                metadataLock.unlock();
+            }
+            // The commit itself runs without metadataLock.
+            try {
+                commit(update.txn, update.allocated);
+            } finally {
+                publish(update);
+                slotLock.unlock();
+            }
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        Log.debug("File created: %s", fileName);
+    }
+
+    @Override
     public void writeFile(String fileName, String data) throws Exception {
-        globalLock.lock();
+        writeFile(fileName, data.getBytes());
+    }
+
+    private void writeFile(String fileName, byte[] bytes) throws Exception {
+        snapshotGate.readLock().lock();
+        try {
+            int inodeIndex = lockFile(fileName, true);
+            if (inodeIndex == -1) throw new Exception("File not found.");
+            Update update = new Update();
+            try {
+                stageWrite(update, inodeIndex, bytes);
+                commit(update.txn, update.allocated);
+                register(update);
+            } finally {
+                publish(update);
+                fileLock(inodeIndex, true).unlock();
+            }
+            settle(update);
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        Log.debug("You wrote %d bytes in the file: %s", bytes.length, fileName);
+    }
+
+    // Writes data over the file from offset on (at most its size), growing it if need be, without touching
+    // the rest of it (see stageRangeWrite). Returns the file's new size.
+    @Override
+    public int writeFile(String fileName, int offset, String data) throws Exception {
+        if (offset < 0) throw new Exception("Invalid offset: " + offset);
+        return writeRange(fileName, offset, data.getBytes());
+    }
+
+    // Adds data at the end of the file and returns its new size.
+    @Override
+    public int appendFile(String fileName, String data) throws Exception {
+        return writeRange(fileName, -1, data.getBytes());
+    }
+
+    // An offset of -1 appends, at whatever the size is once the file is locked.
+    private int writeRange(String fileName, int offset, byte[] bytes) throws Exception {
+        int size;
+        snapshotGate.readLock().lock();
+        try {
+            int inodeIndex = lockFile(fileName, true);
+            if (inodeIndex == -1) throw new Exception("File not found.");
+            Update update = new Update();
+            try {
+                if (offset < 0) offset = inodeTable.getSize(inodeIndex);
+                stageRangeWrite(update, inodeIndex, offset, bytes);
+                commit(update.txn, update.allocated);
+                register(update);
+                size = inodeTable.getSize(inodeIndex);
+            } finally {
+                publish(update);
+                fileLock(inodeIndex, true).unlock();
+            }
+            settle(update);
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        Log.debug("You wrote %d bytes at offset %d in the file: %s", bytes.length, offset, fileName);
+        return size;
+    }
+
+    // Applies the operations in order under a single acquisition of the locks they need, and commits
+    // them as one transaction (one journal record, one fsync). Returns one entry per operation: null if
+    // it succeeded, otherwise why it failed; a failed operation does not stop the others.
+    @Override
+    public Exception[] applyBatch(List<BatchOperation> operations) throws IOException {
+        Exception[] results = new Exception[operations.size()];
+        List<Lock> held = new ArrayList<>();
+        Update update = new Update();
+        snapshotGate.readLock().lock();
+        try {
+            lockBatch(operations, held);
+            applyBatch(operations, results, held, update);
+            settle(update);
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        Log.debug("Applied a batch of %d operations.", operations.size());
+        return results;
+    }
+
+    // Stages and commits the operations once lockBatch has taken the locks.
+    private void applyBatch(List<BatchOperation> operations, Exception[] results, List<Lock> held, Update update)
+            throws IOException {
         try {
-            FEntry file = findFile(fileName);
-            if (file == null) throw new Exception("File not found.");
-            byte[] bytes = data.getBytes();
-            if (bytes.length > BLOCK_SIZE)
-                throw new Exception("File too large for a single block (" + bytes.length + " bytes).");
-            int blockIndex = file.getFirstBlock();
-            long offset = (long) blockIndex * BLOCK_SIZE;
-            disk.seek(offset);
-            disk.write(bytes);
-            if (bytes.length < BLOCK_SIZE) disk.write(new byte[BLOCK_SIZE - bytes.length]);
-            file.setFilesize((short) bytes.length);
-            System.out.println("You wrote " + bytes.length + " bytes in the file: " + fileName);
+            try {
+                for (int i = 0; i < operations.size(); i++) {
+                    BatchOperation op = operations.get(i);
+                    try {
+                        if (op.getType() == BatchOperation.Type.CREATE) {
+                            held.add(stageCreate(update, op.getFileName()));
+                            continue;
+                        }
+                        int inodeIndex = findInodeIndex(op.getFileName());
+                        if (inodeIndex == -1) throw new Exception("File not found.");
+                        if (op.getType() == BatchOperation.Type.WRITE) stageWrite(update, inodeIndex, op.getData().getBytes());
+                        else stageDelete(update, inodeIndex, op.getFileName());
+                    } catch (Exception e) {
+                        results[i] = e;
+                    }
+                }
+            } finally {
+                metadataLock.unlock();
+            }
+            commit(update.txn, update.allocated);
+            register(update);
         } finally {
-            globalLock.unlock();
+            publish(update);
+            for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+        }
+    }
+
+    // Write-locks every existing file the batch names, in slot order so concurrent batches cannot
+    // deadlock, then takes metadataLock once the locked files and the names that did not exist are
+    // known to be unchanged. Returns with metadataLock held.
+    private void lockBatch(List<BatchOperation> operations, List<Lock> held) {
+        while (true) {
+            TreeMap<Integer, String> existing = new TreeMap<>();
+            Set<String> missing = new HashSet<>();
+            metadataLock.lock();
+            try {
+                for (BatchOperation op : operations) {
+                    int inodeIndex = findInodeIndex(op.getFileName());
+                    if (inodeIndex == -1) missing.add(op.getFileName());
+                    else existing.put(inodeIndex, op.getFileName());
+                }
+            } finally {
+                metadataLock.unlock();
+            }
+            // Backs off at the first stale slot, which a concurrent create may be waiting to lock.
+            boolean unchanged = true;
+            for (Map.Entry<Integer, String> e : existing.entrySet()) {
+                Lock lock = fileLock(e.getKey(), true);
+                acquire(lock);
+                held.add(lock);
+                unchanged = inodeTable.hasName(e.getKey(), e.getValue());
+                if (!unchanged) break;
+            }
+            if (unchanged) {
+                metadataLock.lock();
+                boolean stillMissing = true;
+                for (String name : missing) stillMissing &= findInodeIndex(name) == -1;
+                if (stillMissing) return;
+                metadataLock.unlock();
+            }
+            for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+            held.clear();
         }
     }
 
+    @Override
     public String readFile(String fileName) throws Exception {
-        globalLock.lock();
+        int inodeIndex = lockFile(fileName, false);
+        if (inodeIndex == -1) throw new Exception("File not found.");
+        try {
+            // An inline file is served from memory, without touching the data region at all.
+            if (inodeTable.isInline(inodeIndex)) return new String(inodeTable.getInline(inodeIndex));
+            return new String(readContents(inodeIndex));
+        } finally {
+            fileLock(inodeIndex, false).unlock();
+        }
+    }
+
+    // Replaces the file with exactly length bytes read from in, holding at most one stream buffer in
+    // memory. The data goes to freshly allocated blocks and the file only switches over once all of it
+    // has arrived, so a client that disconnects half way leaves the old contents intact. No lock is held
+    // while the data arrives (nothing references those blocks yet), so a slow client holds up neither
+    // readers of the file nor a snapshot; concurrent writers of the same file simply switch over in turn.
+    // Data small enough to be inlined is read in full and written like any other WRITE, and so is data of up
+    // to COMPACT_BUFFER_LIMIT bytes with compact storage on (it is compressed as a whole). Longer data is
+    // still hashed with compact storage on, and shares the chain of a file with the same contents if there
+    // is one, but it is not compressed.
+    @Override
+    public void writeFile(String fileName, InputStream in, int length) throws Exception {
+        if (length < 0) throw new Exception("Invalid length: " + length);
+        if (length > (long) maxBlocks * blockSize)
+            throw new Exception("File too large for the disk (" + length + " bytes).");
+        if (lookupInodeIndex(fileName) == -1) throw new Exception("File not found.");
+        if (length <= inodeTable.getInlineCapacity() || (compact && length <= COMPACT_BUFFER_LIMIT)) {
+            byte[] bytes = in.readNBytes(length);
+            if (bytes.length < length) throw new EOFException("Connection closed before all " + length + " bytes arrived.");
+            writeFile(fileName, bytes);
+            return;
+        }
+        MessageDigest digest = compact ? sha256() : null;
+        long hashNanos = 0;
+        int[] blocks = allocateBlocks(blocksFor(length), -1);
+        boolean committed = false;
+        try {
+            byte[] buffer = streamBuffer();
+            int received = 0;
+            int i = 0;
+            while (i < blocks.length) {
+                int j = i + 1;
+                while (j < blocks.length && blocks[j] == blocks[j - 1] + 1) j++;
+                long position = layout.blockPosition(blocks[i]);
+                long runEnd = position + (long) (j - i) * blockSize;
+                while (position < runEnd) {
+                    int chunk = (int) Math.min(buffer.length, runEnd - position);
+                    int fill = Math.min(chunk, length - received);
+                    if (in.readNBytes(buffer, 0, fill) < fill)
+                        throw new EOFException("Connection closed before all " + length + " bytes arrived.");
+                    if (digest != null) {
+                        long start = System.nanoTime();
+                        digest.update(buffer, 0, fill);
+                        hashNanos += System.nanoTime() - start;
+                    }
+                    if (fill < chunk) Arrays.fill(buffer, fill, chunk, (byte) 0);
+                    disk.write(position, buffer, 0, chunk);
+                    received += fill;
+                    position += chunk;
+                }
+                i = j;
+            }
+            byte[] hash = null;
+            if (digest != null) {
+                hash = digest.digest();
+                codecNanos.add(hashNanos);
+                codecOps.increment();
+            }
+            // The data went straight to blocks nothing references yet; only the switch-over is journaled.
+            snapshotGate.readLock().lock();
+            try {
+                int inodeIndex = lockFile(fileName, true);
+                if (inodeIndex == -1) throw new Exception("File not found.");
+                int[] oldBlocks;
+                try {
+                    oldBlocks = chain(inodeIndex);
+                    Transaction txn = new Transaction();
+                    StoredChain existing = hash == null ? null : share(hash);
+                    if (existing != null) {
+                        // The contents are stored already; the copy just written is freed below.
+                        dedupHits.increment();
+                        inodeTable.setSize(inodeIndex, length);
+                        inodeTable.setFirstBlock(inodeIndex, existing.firstBlock);
+                        inodeTable.setStored(inodeIndex, existing.flags | InodeTable.HASHED, existing.storedSize, hash);
+                        writeEntry(txn, inodeIndex);
+                        commit(txn, new int[0]);
+                    } else {
+                        txn.markDataWritten();
+                        linkChain(txn, blocks);
+                        inodeTable.setFirstBlock(inodeIndex, blocks[0]);
+                        inodeTable.setSize(inodeIndex, length);
+                        inodeTable.setStored(inodeIndex, hash == null ? 0 : InodeTable.HASHED, length, hash);
+                        // The file refers to the new blocks from here on, so they must not be freed.
+                        committed = true;
+                        writeEntry(txn, inodeIndex);
+                        commit(txn, blocks);
+                        if (hash != null) {
+                            metadataLock.lock();
+                            try {
+                                register(inodeIndex);
+                            } finally {
+                                metadataLock.unlock();
+                            }
+                        }
+                    }
+                    oldBlocks = release(oldBlocks);
+                    Update update = new Update();
+                    update.touch(inodeIndex, fileName);
+                    publish(update);
+                } finally {
+                    fileLock(inodeIndex, true).unlock();
+                }
+                freeBlocks(oldBlocks);
+            } finally {
+                snapshotGate.readLock().unlock();
+            }
+        } finally {
+            if (!committed) freeBlocks(release(blocks));
+        }
+        Log.debug("You wrote %d bytes in the file: %s", length, fileName);
+    }
+
+    // What a streaming reader sends once it has let go of the file's lock: the contents, if they are in
+    // memory anyway (inline or compressed), or else the blocks, pinned so that no writer changes or frees
+    // them until closeRead. Nothing is locked while the data goes out, however slowly the client takes it.
+    private OpenRead openRead(String fileName) throws Exception {
+        int inodeIndex = lockFile(fileName, false);
+        if (inodeIndex == -1) throw new Exception("File not found.");
+        try {
+            int size = inodeTable.getSize(inodeIndex);
+            if (inodeTable.isInline(inodeIndex)) return new OpenRead(size, inodeTable.getInline(inodeIndex), null);
+            if (isCompressed(inodeIndex)) return new OpenRead(size, readContents(inodeIndex), null);
+            int[] blocks = chain(inodeIndex);
+            pin(blocks);
+            return new OpenRead(size, null, blocks);
+        } finally {
+            fileLock(inodeIndex, false).unlock();
+        }
+    }
+
+    // Unpins the blocks of an openRead; those the file let go of meanwhile are freed now.
+    private void closeRead(OpenRead read) throws IOException {
+        if (read.blocks == null) return;
+        int[] released = unpin(read.blocks);
+        if (released.length == 0) return;
+        snapshotGate.readLock().lock();
+        try {
+            freeUnpinned(released);
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+    }
+
+    // Streams the file to sink one bounded buffer at a time and returns its size.
+    @Override
+    public int readFile(String fileName, FileSink sink) throws Exception {
+        return readFile(fileName, 0, Integer.MAX_VALUE, sink);
+    }
+
+    // Streams length bytes of the file from offset on (fewer if it ends first) to sink and returns how many.
+    // Only the blocks the range falls in are read, except that a compressed file is decompressed whole.
+    @Override
+    public int readFile(String fileName, int offset, int length, FileSink sink) throws Exception {
+        if (offset < 0 || length < 0) throw new Exception("Invalid range: offset " + offset + ", length " + length);
+        OpenRead read = openRead(fileName);
+        try {
+            if (offset > read.size)
+                throw new Exception("Offset " + offset + " is past the end of the file (" + read.size + " bytes).");
+            int count = Math.min(length, read.size - offset);
+            sink.begin(count);
+            if (read.data != null) {
+                sink.write(read.data, offset, count);
+                return count;
+            }
+            byte[] buffer = streamBuffer();
+            for (int done = 0; done < count; ) {
+                int chunk = Math.min(buffer.length, count - done);
+                readRange(read.blocks, offset + done, buffer, 0, chunk);
+                sink.write(buffer, 0, chunk);
+                done += chunk;
+            }
+            return count;
+        } finally {
+            closeRead(read);
+        }
+    }
+
+    // Like readFile(String, FileSink), but the contents go straight from the disk to target: each long
+    // contiguous extent with BlockStore.transferTo (sendfile), short extents of a fragmented chain through
+    // a buffer. Only sink.begin() is called, before any data is sent.
+    @Override
+    public int transferFile(String fileName, FileSink sink, WritableByteChannel target) throws Exception {
+        OpenRead read = openRead(fileName);
         try {
-            FEntry file = findFile(fileName);
-            if (file == null) throw new Exception("File not found.");
-            int size = file.getFilesize();
-            if (size <= 0) return "";
-            int blockIndex = file.getFirstBlock();
-            long offset = (long) blockIndex * BLOCK_SIZE;
-            disk.seek(offset);
-            byte[] buffer = new byte[size];
-            int read = disk.read(buffer);
-            if (read <= 0) return "";
-            if (read < size) {
-                byte[] tmp = new byte[read];
-                System.arraycopy(buffer, 0, tmp, 0, read);
-                buffer = tmp;
+            int size = read.size;
+            sink.begin(size);
+            if (read.data != null) {
+                ByteBuffer bb = ByteBuffer.wrap(read.data);
+                while (bb.hasRemaining()) target.write(bb);
+                return size;
+            }
+            int[] blocks = read.blocks;
+            byte[] buffer = null;
+            int sent = 0;
+            int i = 0;
+            while (sent < size) {
+                int j = i + 1;
+                while (j < blocks.length && blocks[j] == blocks[j - 1] + 1) j++;
+                long position = layout.blockPosition(blocks[i]);
+                int runLength = Math.min((j - i) * blockSize, size - sent);
+                if (runLength >= ZERO_COPY_MIN_BYTES) {
+                    disk.transferTo(position, runLength, target);
+                } else {
+                    if (buffer == null) buffer = streamBuffer();
+                    for (int done = 0; done < runLength; ) {
+                        int chunk = Math.min(buffer.length, runLength - done);
+                        disk.read(position + done, buffer, 0, chunk);
+                        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, chunk);
+                        while (bb.hasRemaining()) target.write(bb);
+                        done += chunk;
+                    }
+                }
+                sent += runLength;
+                i = j;
             }
-            return new String(buffer);
+            return size;
         } finally {
-            globalLock.unlock();
+            closeRead(read);
         }
     }
 
+    @Override
     public void deleteFile(String fileName) throws Exception {
-        globalLock.lock();
+        snapshotGate.readLock().lock();
         try {
-            int inodeIndex = findInodeIndex(fileName);
+            int inodeIndex = lockFile(fileName, true);
             if (inodeIndex == -1) throw new Exception("File not found.");
-            FEntry file = inodeTable[inodeIndex];
-            int blockIndex = file.getFirstBlock();
-            if (blockIndex >= 0 && blockIndex < MAXBLOCKS)
-                freeBlockList[blockIndex] = true;
-            long offset = (long) blockIndex * BLOCK_SIZE;
-            disk.seek(offset);
-            disk.write(new byte[BLOCK_SIZE]);
-            inodeTable[inodeIndex] = null;
-            System.out.println("File deleted: " + fileName);
+            Update update = new Update();
+            try {
+                stageDelete(update, inodeIndex, fileName);
+                commit(update.txn, update.allocated);
+            } finally {
+                publish(update);
+                fileLock(inodeIndex, true).unlock();
+            }
+            settle(update);
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        Log.debug("File deleted: %s", fileName);
+    }
+
+    // The extents of the file in the slot, or 0 if fileName is no longer there (or is inline).
+    int countExtents(int inodeIndex, String fileName) throws IOException {
+        Lock lock = fileLock(inodeIndex, false);
+        acquire(lock);
+        try {
+            return inodeTable.hasName(inodeIndex, fileName) ? extents(chain(inodeIndex)) : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves a fragmented file into one contiguous extent and returns how many blocks moved, or 0 if it was
+    // left where it is. The data is copied with no lock held, so the file stays readable and writable
+    // meanwhile, and it only switches over to the copy if its version shows nothing changed it since; if
+    // something did, the copy is thrown away and a later pass tries again. Files a snapshot holds blocks
+    // of or shares with other files are left alone, and so are files no free extent is long enough for.
+    int relocate(int inodeIndex, String fileName, Defragmenter pacer) throws Exception {
+        int[] oldBlocks;
+        int version;
+        snapshotGate.readLock().lock();
+        try {
+            Lock lock = fileLock(inodeIndex, false);
+            acquire(lock);
+            try {
+                if (!inodeTable.hasName(inodeIndex, fileName)) return 0;
+                oldBlocks = chain(inodeIndex);
+                if (extents(oldBlocks) <= 1 || pinned(oldBlocks).length > 0 || shared(oldBlocks)) return 0;
+                version = inodeTable.getVersion(inodeIndex);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        int[] blocks = allocateExtent(oldBlocks.length);
+        if (blocks == null) return 0;
+        boolean committed = false;
+        try {
+            byte[] buffer = streamBuffer();
+            long target = layout.blockPosition(blocks[0]);
+            int i = 0;
+            while (i < oldBlocks.length) {
+                int j = i + 1;
+                while (j < oldBlocks.length && oldBlocks[j] == oldBlocks[j - 1] + 1) j++;
+                long position = layout.blockPosition(oldBlocks[i]);
+                int runLength = (j - i) * blockSize;
+                for (int done = 0; done < runLength; ) {
+                    int chunk = Math.min(buffer.length, runLength - done);
+                    disk.read(position + done, buffer, 0, chunk);
+                    disk.write(target + (long) i * blockSize + done, buffer, 0, chunk);
+                    done += chunk;
+                    if (!pacer.pace(chunk)) return 0;
+                }
+                i = j;
+            }
+            // As for a streamed write, the data went to blocks nothing references yet; only the switch-over
+            // is journaled.
+            snapshotGate.readLock().lock();
+            try {
+                Lock lock = fileLock(inodeIndex, true);
+                acquire(lock);
+                try {
+                    // Any change to the slot (a write, or a delete and maybe a new file) bumped its version,
+                    // and the copy may be torn. A snapshot taken meanwhile is not worth doubling the file for.
+                    if (inodeTable.getVersion(inodeIndex) != version || pinned(oldBlocks).length > 0) return 0;
+                    Transaction txn = new Transaction();
+                    txn.markDataWritten();
+                    linkChain(txn, blocks);
+                    txn.write(layout.entryPosition(inodeIndex), layout.encodeEntry(inodeTable, inodeIndex, blocks[0]));
+                    commit(txn, blocks);
+                    inodeTable.setFirstBlock(inodeIndex, blocks[0]);
+                    committed = true;
+                    // A file that started sharing the old chain meanwhile keeps it.
+                    oldBlocks = release(oldBlocks);
+                    metadataLock.lock();
+                    try {
+                        register(inodeIndex);
+                    } finally {
+                        metadataLock.unlock();
+                    }
+                    Update update = new Update();
+                    update.touch(inodeIndex, fileName);
+                    publish(update);
+                } finally {
+                    lock.unlock();
+                }
+                freeBlocks(oldBlocks);
+            } finally {
+                snapshotGate.readLock().unlock();
+            }
         } finally {
-            globalLock.unlock();
+            if (!committed) freeBlocks(release(blocks));
         }
+        Log.debug("Defragmented %s: %d blocks into one extent", fileName, blocks.length);
+        return blocks.length;
+    }
+
+    // The published view, for the defragmenter to walk.
+    InodeView currentView() {
+        return view.get();
     }
 
     public void listFiles() {
-        System.out.println("Files on disk:");
-        for (FEntry entry : inodeTable)
-            if (entry != null)
-                System.out.println(" - " + entry.getFilename() + " (" + entry.getFilesize() + " bytes)");
+        System.out.print("Files on disk:\n" + listFilesToString());
     }
 
     public String listFilesToString() {
         StringBuilder sb = new StringBuilder();
-        for (FEntry entry : inodeTable) {
-            if (entry != null) {
-                sb.append(" - ").append(entry.getFilename())
-                        .append(" (").append(entry.getFilesize()).append(" bytes)\n");
-            }
+        try {
+            listFiles("", 0, Integer.MAX_VALUE, (name, size) ->
+                    sb.append(" - ").append(name).append(" (").append(size).append(" bytes)\n"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
         return sb.toString();
     }
+
+    // Passes up to limit files whose names start with prefix to sink, in inode slot order from slot
+    // cursor on. Returns the cursor to continue from, or -1 once every slot has been visited. Walks one
+    // published view without taking any lock, so a listing never holds up writers (or they it) and shows
+    // the table exactly as it was at one instant; later pages come from whatever view is current then.
+    @Override
+    public int listFiles(String prefix, int cursor, int limit, ListSink sink) throws IOException {
+        return list(view.get(), prefix, cursor, limit, sink);
+    }
+
+    private static int list(InodeView v, String prefix, int cursor, int limit, ListSink sink) throws IOException {
+        int listed = 0;
+        for (InodeView.Entry e = v.ceiling(cursor); e != null; e = v.ceiling(e.getSlot() + 1)) {
+            if (!e.getName().startsWith(prefix)) continue;
+            if (listed == limit) return e.getSlot();
+            sink.entry(e.getName(), e.getSize());
+            listed++;
+        }
+        return -1;
+    }
+
+    // Takes a named, read-only point-in-time copy of every file. Only the inode view is kept (it is
+    // immutable already) and the files' blocks are pinned, so taking one costs no data copying: from
+    // then on a write copies a pinned block before changing it and a pinned block that is let go of
+    // stays allocated until the last snapshot holding it is dropped. Snapshots live in memory only.
+    @Override
+    public int createSnapshot(String name) throws Exception {
+        if (name == null || name.isEmpty()) throw new Exception("Snapshot name must not be empty.");
+        snapshotGate.writeLock().lock();
+        try {
+            if (snapshots.containsKey(name)) throw new Exception("Snapshot already exists.");
+            InodeView v = view.get();
+            int[][] blocks = new int[maxFiles][];
+            byte[][] inline = new byte[maxFiles][];
+            int[] compressedSizes = new int[maxFiles];
+            for (InodeView.Entry e = v.ceiling(0); e != null; e = v.ceiling(e.getSlot() + 1)) {
+                int inodeIndex = e.getSlot();
+                // Inline contents have no blocks to pin, so they are copied (they are small).
+                if (inodeTable.isInline(inodeIndex)) inline[inodeIndex] = inodeTable.getInline(inodeIndex);
+                compressedSizes[inodeIndex] = isCompressed(inodeIndex) ? inodeTable.getStoredSize(inodeIndex) : -1;
+                blocks[inodeIndex] = chain(inodeIndex);
+                pin(blocks[inodeIndex]);
+            }
+            snapshots.put(name, new Snapshot(v, blocks, inline, compressedSizes));
+            Log.info("Snapshot created: %s (%d files)", name, v.getFileCount());
+            return v.getFileCount();
+        } finally {
+            snapshotGate.writeLock().unlock();
+        }
+    }
+
+    // Lets go of the snapshot's blocks; those no file uses any more are zeroed and freed.
+    @Override
+    public void dropSnapshot(String name) throws Exception {
+        snapshotGate.writeLock().lock();
+        try {
+            Snapshot snapshot = snapshots.remove(name);
+            if (snapshot == null) throw new Exception("Snapshot not found.");
+            int[] released = new int[0];
+            for (int[] blocks : snapshot.blocks) if (blocks != null) released = append(released, unpin(blocks));
+            int freed = freeUnpinned(released);
+            Log.info("Snapshot dropped: %s (%d blocks freed)", name, freed);
+        } finally {
+            snapshotGate.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String readSnapshotFile(String snapshotName, String fileName) throws Exception {
+        snapshotGate.readLock().lock();
+        try {
+            Snapshot snapshot = snapshots.get(snapshotName);
+            if (snapshot == null) throw new Exception("Snapshot not found.");
+            InodeView.Entry entry = snapshot.view.find(fileName);
+            if (entry == null) throw new Exception("File not found.");
+            if (snapshot.inline[entry.getSlot()] != null) return new String(snapshot.inline[entry.getSlot()]);
+            // Pinned blocks never change, so no file lock is needed; the gate keeps the snapshot from being dropped.
+            int compressedSize = snapshot.compressedSizes[entry.getSlot()];
+            if (compressedSize < 0) return new String(readBlocks(snapshot.blocks[entry.getSlot()], entry.getSize()));
+            return new String(decompress(readBlocks(snapshot.blocks[entry.getSlot()], compressedSize), entry.getSize()));
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+    }
+
+    // Like listFiles, over the files as they were when the snapshot was taken.
+    @Override
+    public int listSnapshotFiles(String snapshotName, String prefix, int cursor, int limit, ListSink sink)
+            throws Exception {
+        Snapshot snapshot;
+        snapshotGate.readLock().lock();
+        try {
+            snapshot = snapshots.get(snapshotName);
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        if (snapshot == null) throw new Exception("Snapshot not found.");
+        return list(snapshot.view, prefix, cursor, limit, sink);
+    }
+
+    // Snapshot names, oldest first, with how many files each holds.
+    @Override
+    public Map<String, Integer> getSnapshots() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        snapshotGate.readLock().lock();
+        try {
+            for (Map.Entry<String, Snapshot> e : snapshots.entrySet()) counts.put(e.getKey(), e.getValue().view.getFileCount());
+        } finally {
+            snapshotGate.readLock().unlock();
+        }
+        return counts;
+    }
+
+    @Override
+    public int getSnapshotCount() {
+        return getSnapshots().size();
+    }
+
+    // Bumped by every committed change to the set of files or their sizes.
+    @Override
+    public long getViewVersion() {
+        return view.get().getVersion();
+    }
+
+    @Override
+    public int getShardCount() {
+        return 1;
+    }
+
+    @Override
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    @Override
+    public int getMaxBlocks() {
+        return maxBlocks;
+    }
+
+    @Override
+    public int getFreeInodes() {
+        metadataLock.lock();
+        try {
+            return freeInodeCount;
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    @Override
+    public int getFreeBlocks() {
+        metadataLock.lock();
+        try {
+            return blockBitmap.freeCount();
+        } finally {
+            metadataLock.unlock();
+        }
+    }
+
+    @Override
+    public long getDefragPasses() {
+        Defragmenter d = defragmenter;
+        return d == null ? 0 : d.getPasses();
+    }
+
+    @Override
+    public int getDefragProgress() {
+        Defragmenter d = defragmenter;
+        return d == null ? 100 : d.getProgress();
+    }
+
+    @Override
+    public int getFragmentedFiles() {
+        Defragmenter d = defragmenter;
+        return d == null ? 0 : d.getFragmentedFiles();
+    }
+
+    @Override
+    public long getDefragMovedFiles() {
+        Defragmenter d = defragmenter;
+        return d == null ? 0 : d.getMovedFiles();
+    }
+
+    @Override
+    public long getDefragMovedBlocks() {
+        Defragmenter d = defragmenter;
+        return d == null ? 0 : d.getMovedBlocks();
+    }
+
+    // Blocks the files would take stored as they are, each in a chain of its own: against the blocks in use,
+    // what compact storage saves.
+    @Override
+    public long getLogicalBlocks() {
+        InodeView v = view.get();
+        long blocks = 0;
+        for (InodeView.Entry e = v.ceiling(0); e != null; e = v.ceiling(e.getSlot() + 1))
+            if (e.getSize() > inodeTable.getInlineCapacity()) blocks += blocksFor(e.getSize());
+        return blocks;
+    }
+
+    @Override
+    public long getDedupHits() {
+        return dedupHits.sum();
+    }
+
+    // Hashing, compressing and decompressing.
+    @Override
+    public long getCodecOps() {
+        return codecOps.sum();
+    }
+
+    @Override
+    public long getCodecNanos() {
+        return codecNanos.sum();
+    }
+
+    @Override
+    public long getJournalCommits() {
+        return journal == null ? 0 : journal.getCommits();
+    }
+
+    @Override
+    public long getJournalSyncs() {
+        return journal == null ? 0 : journal.getSyncs();
+    }
+
+    @Override
+    public long getJournalCheckpoints() {
+        return journal == null ? 0 : journal.getCheckpoints();
+    }
+
+    @Override
+    public long getMetadataLockContentions() {
+        return metadataLock.getContentions();
+    }
+
+    @Override
+    public long getMetadataLockWaitNanos() {
+        return metadataLock.getWaitNanos();
+    }
+
+    @Override
+    public long getFileLockContentions() {
+        return fileLockContentions.sum();
+    }
+
+    @Override
+    public long getFileLockWaitNanos() {
+        return fileLockWaitNanos.sum();
+    }
+
+    // The disk changes of one or more operations, plus the blocks and inode slots they took or gave up.
+    // Freed ones only go back to the allocators once the changes are committed (see settle).
+    private static final class Update {
+        final Transaction txn = new Transaction();
+        int[] allocated = new int[0];
+        int[] freedBlocks = new int[0];
+        int[] freedInodes = new int[0];
+        // Slots given a new HASHED chain, to register once committed.
+        int[] hashedSlots = new int[0];
+        // Slots the update changed, with the name each held before, for publish().
+        final List<Integer> touchedSlots = new ArrayList<>();
+        final List<String> touchedNames = new ArrayList<>();
+
+        void touch(int inodeIndex, String fileName) {
+            touchedSlots.add(inodeIndex);
+            touchedNames.add(fileName);
+        }
+    }
+
+    // The files as of one view, each with the blocks (indexed by slot) it had then; those blocks are
+    // pinned, so nothing overwrites or frees them while the snapshot exists.
+    private static final class Snapshot {
+        final InodeView view;
+        final int[][] blocks;
+        // The contents of the files that were inline, by slot; null for the others.
+        final byte[][] inline;
+        // How many bytes of the COMPRESSED files' blocks hold them, by slot; -1 for the others.
+        final int[] compressedSizes;
+
+        Snapshot(InodeView view, int[][] blocks, byte[][] inline, int[] compressedSizes) {
+            this.view = view;
+            this.blocks = blocks;
+            this.inline = inline;
+            this.compressedSizes = compressedSizes;
+        }
+    }
+
+    // A file opened by openRead: its contents, or its pinned blocks.
+    private static final class OpenRead {
+        final int size;
+        final byte[] data;
+        final int[] blocks;
+
+        OpenRead(int size, byte[] data, int[] blocks) {
+            this.size = size;
+            this.data = data;
+            this.blocks = blocks;
+        }
+    }
+
+    // A chain some HASHED file is stored in, for others with the same contents to share.
+    private static final class StoredChain {
+        final int firstBlock;
+        final int flags;
+        final int storedSize;
+
+        StoredChain(int firstBlock, int flags, int storedSize) {
+            this.firstBlock = firstBlock;
+            this.flags = flags;
+            this.storedSize = storedSize;
+        }
+    }
 }
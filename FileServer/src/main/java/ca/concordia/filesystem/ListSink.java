@@ -0,0 +1,9 @@
+package ca.concordia.filesystem;
+
+import java.io.IOException;
+
+// Receives the entries of a listing streamed out of the FileSystemManager, one file at a time.
+public interface ListSink {
+
+    void entry(String fileName, int size) throws IOException;
+}
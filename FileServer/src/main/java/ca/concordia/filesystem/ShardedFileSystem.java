@@ -0,0 +1,390 @@
+package ca.concordia.filesystem;
+
+import ca.concordia.filesystem.datastructures.HashRing;
+import ca.concordia.logging.Log;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Spreads the files over several FileSystemManagers (shards), each on its own disk with its own journal,
+// allocators and locks, so operations on different shards never wait for each other. A file lives on
+// the shard the HashRing picks for its name. LIST walks the shards in turn; its cursor is
+// shard * stride + slot within the shard. A BATCH is split by shard and is atomic within each of them.
+public class ShardedFileSystem implements FileSystem {
+
+    private final FileSystemManager[] shards;
+    private final HashRing ring;
+    private final int stride;
+
+    // Files found on a shard the ring no longer gives them to (because shards were added since they were
+    // written) are moved to their shard first; that is the only time files move.
+    public ShardedFileSystem(List<FileSystemManager> shards) throws Exception {
+        this.shards = shards.toArray(new FileSystemManager[0]);
+        this.ring = new HashRing(this.shards.length);
+        int widest = 0;
+        for (FileSystemManager shard : this.shards) widest = Math.max(widest, shard.getMaxFiles());
+        if ((long) widest * this.shards.length > Integer.MAX_VALUE) throw new IOException("Too many inodes to list.");
+        this.stride = widest;
+        rebalance();
+    }
+
+    private FileSystemManager shardFor(String fileName) {
+        return shards[ring.shardFor(fileName)];
+    }
+
+    // A file is copied to its shard (replacing any copy a crash left there half way) and only then removed
+    // from the old one, so running this again after a crash simply finishes the job.
+    private void rebalance() throws Exception {
+        List<Set<String>> names = new ArrayList<>();
+        for (FileSystemManager shard : shards) {
+            Set<String> found = new HashSet<>();
+            shard.listFiles("", 0, Integer.MAX_VALUE, (name, size) -> found.add(name));
+            names.add(found);
+        }
+        int moved = 0;
+        for (int from = 0; from < shards.length; from++) {
+            for (String name : names.get(from)) {
+                int to = ring.shardFor(name);
+                if (to == from) continue;
+                ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                shards[from].readFile(name, new FileSink() {
+                    @Override
+                    public void begin(int size) {
+                    }
+
+                    @Override
+                    public void write(byte[] buffer, int offset, int length) {
+                        contents.write(buffer, offset, length);
+                    }
+                });
+                if (names.get(to).add(name)) shards[to].createFile(name);
+                shards[to].writeFile(name, new ByteArrayInputStream(contents.toByteArray()), contents.size());
+                shards[from].deleteFile(name);
+                moved++;
+            }
+        }
+        if (moved > 0) Log.info("Rebalanced %d shards: moved %d files", shards.length, moved);
+    }
+
+    @Override
+    public void createFile(String fileName) throws Exception {
+        shardFor(fileName).createFile(fileName);
+    }
+
+    @Override
+    public void writeFile(String fileName, String data) throws Exception {
+        shardFor(fileName).writeFile(fileName, data);
+    }
+
+    @Override
+    public void writeFile(String fileName, InputStream in, int length) throws Exception {
+        shardFor(fileName).writeFile(fileName, in, length);
+    }
+
+    @Override
+    public int writeFile(String fileName, int offset, String data) throws Exception {
+        return shardFor(fileName).writeFile(fileName, offset, data);
+    }
+
+    @Override
+    public int appendFile(String fileName, String data) throws Exception {
+        return shardFor(fileName).appendFile(fileName, data);
+    }
+
+    @Override
+    public String readFile(String fileName) throws Exception {
+        return shardFor(fileName).readFile(fileName);
+    }
+
+    @Override
+    public int readFile(String fileName, FileSink sink) throws Exception {
+        return shardFor(fileName).readFile(fileName, sink);
+    }
+
+    @Override
+    public int readFile(String fileName, int offset, int length, FileSink sink) throws Exception {
+        return shardFor(fileName).readFile(fileName, offset, length, sink);
+    }
+
+    @Override
+    public int transferFile(String fileName, FileSink sink, WritableByteChannel target) throws Exception {
+        return shardFor(fileName).transferFile(fileName, sink, target);
+    }
+
+    @Override
+    public void deleteFile(String fileName) throws Exception {
+        shardFor(fileName).deleteFile(fileName);
+    }
+
+    @Override
+    public Exception[] applyBatch(List<BatchOperation> operations) throws IOException {
+        List<List<BatchOperation>> batches = new ArrayList<>();
+        List<List<Integer>> positions = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            batches.add(new ArrayList<>());
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < operations.size(); i++) {
+            int shard = ring.shardFor(operations.get(i).getFileName());
+            batches.get(shard).add(operations.get(i));
+            positions.get(shard).add(i);
+        }
+        Exception[] results = new Exception[operations.size()];
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (batches.get(shard).isEmpty()) continue;
+            Exception[] shardResults = shards[shard].applyBatch(batches.get(shard));
+            for (int i = 0; i < shardResults.length; i++) results[positions.get(shard).get(i)] = shardResults[i];
+        }
+        return results;
+    }
+
+    @Override
+    public int listFiles(String prefix, int cursor, int limit, ListSink sink) throws Exception {
+        return list(cursor, limit, sink, (shard, from, max, counted) -> shard.listFiles(prefix, from, max, counted));
+    }
+
+    // One shard's part of a listing.
+    private interface ShardListing {
+        int list(FileSystemManager shard, int cursor, int limit, ListSink sink) throws Exception;
+    }
+
+    // Lists the shards one after another from cursor on. A shard is also asked for a page of 0 once the
+    // limit is reached, which tells whether anything is left to continue from.
+    private int list(int cursor, int limit, ListSink sink, ShardListing listing) throws Exception {
+        int first = Math.max(0, cursor) / stride;
+        int listed = 0;
+        for (int shard = first; shard < shards.length; shard++) {
+            int[] count = {0};
+            int next = listing.list(shards[shard], shard == first ? Math.max(0, cursor) % stride : 0, limit - listed,
+                    (name, size) -> {
+                        count[0]++;
+                        sink.entry(name, size);
+                    });
+            listed += count[0];
+            if (next != -1) return shard * stride + next;
+        }
+        return -1;
+    }
+
+    // Every shard takes a snapshot of its own files under the same name. Each shard's part is consistent
+    // in itself, but the parts are taken one after another, not at a single instant.
+    @Override
+    public synchronized int createSnapshot(String name) throws Exception {
+        int files = 0;
+        int taken = 0;
+        try {
+            for (; taken < shards.length; taken++) files += shards[taken].createSnapshot(name);
+        } catch (Exception e) {
+            for (int i = 0; i < taken; i++) shards[i].dropSnapshot(name);
+            throw e;
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized void dropSnapshot(String name) throws Exception {
+        for (FileSystemManager shard : shards) shard.dropSnapshot(name);
+    }
+
+    @Override
+    public String readSnapshotFile(String snapshotName, String fileName) throws Exception {
+        // Files only move when the shards are mounted, and snapshots do not outlive that.
+        return shardFor(fileName).readSnapshotFile(snapshotName, fileName);
+    }
+
+    @Override
+    public int listSnapshotFiles(String snapshotName, String prefix, int cursor, int limit, ListSink sink)
+            throws Exception {
+        return list(cursor, limit, sink,
+                (shard, from, max, counted) -> shard.listSnapshotFiles(snapshotName, prefix, from, max, counted));
+    }
+
+    @Override
+    public synchronized Map<String, Integer> getSnapshots() {
+        Map<String, Integer> counts = new LinkedHashMap<>(shards[0].getSnapshots());
+        for (int i = 1; i < shards.length; i++)
+            for (Map.Entry<String, Integer> e : shards[i].getSnapshots().entrySet()) counts.merge(e.getKey(), e.getValue(), Integer::sum);
+        return counts;
+    }
+
+    @Override
+    public int getSnapshotCount() {
+        return shards[0].getSnapshotCount();
+    }
+
+    @Override
+    public long getViewVersion() {
+        long version = 0;
+        for (FileSystemManager shard : shards) version += shard.getViewVersion();
+        return version;
+    }
+
+    @Override
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    @Override
+    public int getMaxFiles() {
+        int total = 0;
+        for (FileSystemManager shard : shards) total += shard.getMaxFiles();
+        return total;
+    }
+
+    @Override
+    public int getMaxBlocks() {
+        int total = 0;
+        for (FileSystemManager shard : shards) total += shard.getMaxBlocks();
+        return total;
+    }
+
+    @Override
+    public int getFreeInodes() {
+        int total = 0;
+        for (FileSystemManager shard : shards) total += shard.getFreeInodes();
+        return total;
+    }
+
+    @Override
+    public int getFreeBlocks() {
+        int total = 0;
+        for (FileSystemManager shard : shards) total += shard.getFreeBlocks();
+        return total;
+    }
+
+    // Every shard defragments its own disk; a pass counts once all of them are through it.
+    @Override
+    public long getDefragPasses() {
+        long passes = Long.MAX_VALUE;
+        for (FileSystemManager shard : shards) passes = Math.min(passes, shard.getDefragPasses());
+        return passes;
+    }
+
+    @Override
+    public int getDefragProgress() {
+        int total = 0;
+        for (FileSystemManager shard : shards) total += shard.getDefragProgress();
+        return total / shards.length;
+    }
+
+    @Override
+    public int getFragmentedFiles() {
+        int total = 0;
+        for (FileSystemManager shard : shards) total += shard.getFragmentedFiles();
+        return total;
+    }
+
+    @Override
+    public long getDefragMovedFiles() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getDefragMovedFiles();
+        return total;
+    }
+
+    @Override
+    public long getDefragMovedBlocks() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getDefragMovedBlocks();
+        return total;
+    }
+
+    @Override
+    public long getLogicalBlocks() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getLogicalBlocks();
+        return total;
+    }
+
+    @Override
+    public long getDedupHits() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getDedupHits();
+        return total;
+    }
+
+    @Override
+    public long getCodecOps() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getCodecOps();
+        return total;
+    }
+
+    @Override
+    public long getCodecNanos() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getCodecNanos();
+        return total;
+    }
+
+    @Override
+    public long getJournalCommits() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getJournalCommits();
+        return total;
+    }
+
+    @Override
+    public long getJournalSyncs() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getJournalSyncs();
+        return total;
+    }
+
+    @Override
+    public long getJournalCheckpoints() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getJournalCheckpoints();
+        return total;
+    }
+
+    @Override
+    public long getMetadataLockContentions() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getMetadataLockContentions();
+        return total;
+    }
+
+    @Override
+    public long getMetadataLockWaitNanos() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getMetadataLockWaitNanos();
+        return total;
+    }
+
+    @Override
+    public long getFileLockContentions() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getFileLockContentions();
+        return total;
+    }
+
+    @Override
+    public long getFileLockWaitNanos() {
+        long total = 0;
+        for (FileSystemManager shard : shards) total += shard.getFileLockWaitNanos();
+        return total;
+    }
+
+    // Closes every shard, even if closing one of them fails.
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileSystemManager shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,104 @@
+package ca.concordia.filesystem.datastructures;
+
+// Free-space bitmap packed into 64-bit words (bit set = block in use). Searches skip whole words
+// with Long.numberOfTrailingZeros and resume from a next-fit cursor. Not thread-safe.
+public class BlockBitmap {
+
+    private final long[] words;
+    private final int size;
+    private int freeCount;
+    private int cursor;
+
+    public BlockBitmap(int size) {
+        this.size = size;
+        this.words = new long[(size + 63) >>> 6];
+        this.freeCount = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int freeCount() {
+        return freeCount;
+    }
+
+    public int wordCount() {
+        return words.length;
+    }
+
+    public long word(int wordIndex) {
+        return words[wordIndex];
+    }
+
+    // Replaces a whole word, e.g. when loading the bitmap from disk.
+    public void setWord(int wordIndex, long word) {
+        if (wordIndex == words.length - 1 && (size & 63) != 0) word &= (1L << (size & 63)) - 1;
+        freeCount += Long.bitCount(words[wordIndex]) - Long.bitCount(word);
+        words[wordIndex] = word;
+    }
+
+    public boolean isFree(int block) {
+        return (words[block >>> 6] & (1L << block)) == 0;
+    }
+
+    public void allocate(int block) {
+        words[block >>> 6] |= 1L << block;
+        freeCount--;
+    }
+
+    public void free(int block) {
+        words[block >>> 6] &= ~(1L << block);
+        freeCount++;
+    }
+
+    // First free block at or after from, or -1.
+    public int nextFree(int from) {
+        if (from >= size) return -1;
+        int w = from >>> 6;
+        long free = ~words[w] & (-1L << from);
+        while (free == 0) {
+            if (++w == words.length) return -1;
+            free = ~words[w];
+        }
+        int block = (w << 6) + Long.numberOfTrailingZeros(free);
+        return block < size ? block : -1;
+    }
+
+    // First used block at or after from, or size if the rest of the bitmap is free.
+    public int nextUsed(int from) {
+        if (from >= size) return size;
+        int w = from >>> 6;
+        long used = words[w] & (-1L << from);
+        while (used == 0) {
+            if (++w == words.length) return size;
+            used = words[w];
+        }
+        return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(used));
+    }
+
+    // Start of a free run of count blocks, trying hint first and then searching next-fit from
+    // the cursor (wrapping around once). Returns -1 if no run is long enough.
+    public int findRun(int count, int hint) {
+        if (hint >= 0 && hint < size && isFree(hint) && nextUsed(hint) - hint >= count) return hint;
+        int start = findRun(count, cursor, size);
+        if (start < 0 && cursor > 0) start = findRun(count, 0, Math.min(size, cursor + count));
+        if (start >= 0) cursor = start + count < size ? start + count : 0;
+        return start;
+    }
+
+    // Start of the lowest free run of count blocks, or -1; leaves the next-fit cursor alone.
+    public int findFirstRun(int count) {
+        return findRun(count, 0, size);
+    }
+
+    private int findRun(int count, int from, int limit) {
+        int start = nextFree(from);
+        while (start >= 0 && start + count <= limit) {
+            int end = nextUsed(start);
+            if (end - start >= count) return start;
+            start = nextFree(end);
+        }
+        return -1;
+    }
+}
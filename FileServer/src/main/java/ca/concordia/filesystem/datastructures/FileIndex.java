@@ -0,0 +1,69 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Open-addressing hash index from filename to inode slot. The table only stores slot numbers and
+// cached hashes in primitive arrays; names are compared against the shared inode table itself.
+// Uses linear probing with backward-shift deletion, so there are no tombstones. Not thread-safe.
+public class FileIndex {
+
+    private static final int EMPTY = -1;
+
+    private final InodeTable inodeTable;
+    private final int[] slots;
+    private final int[] hashes;
+    private final int mask;
+
+    public FileIndex(InodeTable inodeTable) {
+        this.inodeTable = inodeTable;
+        int capacity = Integer.highestOneBit(Math.max(2, inodeTable.length()) * 2 - 1) << 1;
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(slots, EMPTY);
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Returns the inode slot of name, or -1.
+    public int get(String name) {
+        int h = hash(name);
+        for (int i = h & mask; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (hashes[i] == h && inodeTable.hasName(slots[i], name)) return slots[i];
+        }
+        return -1;
+    }
+
+    // Indexes slot inodeIndex of the inode table under its current filename.
+    public void put(int inodeIndex) {
+        int h = hash(inodeTable.getName(inodeIndex));
+        int i = h & mask;
+        while (slots[i] != EMPTY) i = (i + 1) & mask;
+        slots[i] = inodeIndex;
+        hashes[i] = h;
+    }
+
+    public void remove(String name) {
+        int h = hash(name);
+        int i = h & mask;
+        while (slots[i] != EMPTY) {
+            if (hashes[i] == h && inodeTable.hasName(slots[i], name)) break;
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == EMPTY) return;
+        // Shift later entries of the probe run back so lookups never stop early at the hole.
+        int hole = i;
+        for (int j = (hole + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hashes[hole] = hashes[j];
+                hole = j;
+            }
+        }
+        slots[hole] = EMPTY;
+    }
+}
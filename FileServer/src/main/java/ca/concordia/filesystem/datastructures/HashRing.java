@@ -0,0 +1,60 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hashing of file names onto shards. Every shard owns POINTS positions on a 64-bit ring and
+// a name belongs to the shard owning the first position at or after the name's hash. Positions depend
+// only on the shard number, so going from n to n + 1 shards only hands the new shard about a 1/(n + 1)
+// share of the names and never moves a name between two of the old shards.
+public final class HashRing {
+
+    // Enough positions per shard to keep the shares within a few percent of each other.
+    private static final int POINTS = 160;
+
+    private final int shards;
+    private final long[] positions;
+    private final int[] owners;
+
+    public HashRing(int shards) {
+        if (shards <= 0) throw new IllegalArgumentException("At least one shard is needed: " + shards);
+        this.shards = shards;
+        // On the (unlikely) collision of two positions the lower shard keeps it, whatever is added later.
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int shard = 0; shard < shards; shard++)
+            for (int point = 0; point < POINTS; point++) ring.putIfAbsent(hash("shard-" + shard + "#" + point), shard);
+        positions = new long[ring.size()];
+        owners = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> e : ring.entrySet()) {
+            positions[i] = e.getKey();
+            owners[i++] = e.getValue();
+        }
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int shardFor(String fileName) {
+        int i = Arrays.binarySearch(positions, hash(fileName));
+        if (i < 0) i = -i - 1;
+        return owners[i == positions.length ? 0 : i];
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, then the MurmurHash3 finalizer to spread similar names apart.
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,194 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// The inode table as a handful of primitive arrays instead of one object (and one String) per file.
+// Every slot has a fixed nameLength-byte UTF-8 name, zero-padded and all zero while the slot is free, a
+// size and a first block. A file of at most inlineCapacity bytes keeps its contents here as well and
+// has no blocks at all (its first block is NO_BLOCK). A block file's flags tell how its blocks hold it;
+// unless they are 0 its inline area describes that instead: stored size (int) | content hash. Every change to a slot bumps its version, so
+// whoever worked from a copy of a file without holding its lock can tell whether it is still current.
+// Not thread-safe: callers guard each slot.
+public class InodeTable {
+
+    public static final int NO_BLOCK = -1;
+    // The blocks hold the file compressed (see storage.Lz4), getStoredSize bytes of it.
+    public static final int COMPRESSED = 1;
+    // The file's record carries a hash of its contents, so files with the same contents can share blocks.
+    public static final int HASHED = 2;
+    public static final int HASH_LENGTH = 32;
+    // How much of the inline area a block file with flags needs.
+    public static final int DESCRIPTOR_SIZE = Integer.BYTES + HASH_LENGTH;
+
+    private final int slots;
+    private final int nameLength;
+    private final int inlineCapacity;
+    private final byte[] names;
+    private final int[] sizes;
+    private final int[] firstBlocks;
+    private final byte[] inline;
+    private final int[] versions;
+    private final byte[] flags;
+
+    public InodeTable(int slots, int nameLength, int inlineCapacity) {
+        this.slots = slots;
+        this.nameLength = nameLength;
+        this.inlineCapacity = inlineCapacity;
+        names = new byte[slots * nameLength];
+        sizes = new int[slots];
+        firstBlocks = new int[slots];
+        inline = new byte[slots * inlineCapacity];
+        versions = new int[slots];
+        flags = new byte[slots];
+    }
+
+    public int length() {
+        return slots;
+    }
+
+    public int getInlineCapacity() {
+        return inlineCapacity;
+    }
+
+    public boolean isUsed(int slot) {
+        return names[slot * nameLength] != 0;
+    }
+
+    public String getName(int slot) {
+        int base = slot * nameLength;
+        int length = 0;
+        while (length < nameLength && names[base + length] != 0) length++;
+        return new String(names, base, length, StandardCharsets.UTF_8);
+    }
+
+    // Same as name.equals(getName(slot)), without decoding the stored name when it is ASCII.
+    public boolean hasName(int slot, String name) {
+        int base = slot * nameLength;
+        int length = name.length();
+        if (length == 0 || length > nameLength) return false;
+        for (int i = 0; i < length; i++) {
+            char c = name.charAt(i);
+            if (c >= 0x80) return name.equals(getName(slot));
+            if (names[base + i] != c) return false;
+        }
+        return length == nameLength || names[base + length] == 0;
+    }
+
+    public int getSize(int slot) {
+        return sizes[slot];
+    }
+
+    public int getFirstBlock(int slot) {
+        return firstBlocks[slot];
+    }
+
+    public int getVersion(int slot) {
+        return versions[slot];
+    }
+
+    public int getFlags(int slot) {
+        return flags[slot];
+    }
+
+    // How many bytes of the file its blocks hold.
+    public int getStoredSize(int slot) {
+        if ((flags[slot] & COMPRESSED) == 0) return sizes[slot];
+        int base = slot * inlineCapacity;
+        return (inline[base] & 0xff) << 24 | (inline[base + 1] & 0xff) << 16 | (inline[base + 2] & 0xff) << 8
+                | inline[base + 3] & 0xff;
+    }
+
+    // The hash of the file's contents, or null if the file is not HASHED.
+    public byte[] getHash(int slot) {
+        if ((flags[slot] & HASHED) == 0) return null;
+        int base = slot * inlineCapacity + Integer.BYTES;
+        return Arrays.copyOfRange(inline, base, base + HASH_LENGTH);
+    }
+
+    public boolean isInline(int slot) {
+        return firstBlocks[slot] == NO_BLOCK;
+    }
+
+    // A copy of the contents of an inline file.
+    public byte[] getInline(int slot) {
+        int base = slot * inlineCapacity;
+        return Arrays.copyOfRange(inline, base, base + sizes[slot]);
+    }
+
+    // Fills a free slot; name must fit in nameLength bytes.
+    public void set(int slot, String name, int size, int firstBlock) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int base = slot * nameLength;
+        Arrays.fill(names, base, base + nameLength, (byte) 0);
+        System.arraycopy(bytes, 0, names, base, bytes.length);
+        sizes[slot] = size;
+        firstBlocks[slot] = firstBlock;
+        flags[slot] = 0;
+        versions[slot]++;
+    }
+
+    public void setSize(int slot, int size) {
+        sizes[slot] = size;
+        versions[slot]++;
+    }
+
+    public void setFirstBlock(int slot, int firstBlock) {
+        firstBlocks[slot] = firstBlock;
+        versions[slot]++;
+    }
+
+    // Says how a block file's blocks hold it; hash is only kept with HASHED. Unless flags is 0 this needs an
+    // inline capacity of at least DESCRIPTOR_SIZE.
+    public void setStored(int slot, int flags, int storedSize, byte[] hash) {
+        this.flags[slot] = (byte) flags;
+        if (flags != 0) {
+            int base = slot * inlineCapacity;
+            Arrays.fill(inline, base, base + inlineCapacity, (byte) 0);
+            inline[base] = (byte) (storedSize >>> 24);
+            inline[base + 1] = (byte) (storedSize >>> 16);
+            inline[base + 2] = (byte) (storedSize >>> 8);
+            inline[base + 3] = (byte) storedSize;
+            if ((flags & HASHED) != 0) System.arraycopy(hash, 0, inline, base + Integer.BYTES, HASH_LENGTH);
+        }
+        versions[slot]++;
+    }
+
+    // Makes the file an inline one holding data[offset, offset + length), at most inlineCapacity bytes.
+    public void setInline(int slot, byte[] data, int offset, int length) {
+        int base = slot * inlineCapacity;
+        System.arraycopy(data, offset, inline, base, length);
+        Arrays.fill(inline, base + length, base + inlineCapacity, (byte) 0);
+        sizes[slot] = length;
+        firstBlocks[slot] = NO_BLOCK;
+        flags[slot] = 0;
+        versions[slot]++;
+    }
+
+    public void clear(int slot) {
+        Arrays.fill(names, slot * nameLength, (slot + 1) * nameLength, (byte) 0);
+        Arrays.fill(inline, slot * inlineCapacity, (slot + 1) * inlineCapacity, (byte) 0);
+        sizes[slot] = 0;
+        firstBlocks[slot] = NO_BLOCK;
+        flags[slot] = 0;
+        versions[slot]++;
+    }
+
+    // Copies the raw record fields out of / into a slot, for the on-disk encoding.
+    public void copyName(int slot, byte[] target, int offset) {
+        System.arraycopy(names, slot * nameLength, target, offset, nameLength);
+    }
+
+    public void copyInline(int slot, byte[] target, int offset) {
+        System.arraycopy(inline, slot * inlineCapacity, target, offset, inlineCapacity);
+    }
+
+    public void load(int slot, byte[] source, int nameOffset, int flags, int size, int firstBlock, int inlineOffset) {
+        System.arraycopy(source, nameOffset, names, slot * nameLength, nameLength);
+        this.flags[slot] = (byte) flags;
+        sizes[slot] = size;
+        firstBlocks[slot] = firstBlock;
+        if ((firstBlock == NO_BLOCK || flags != 0) && inlineCapacity > 0)
+            System.arraycopy(source, inlineOffset, inline, slot * inlineCapacity, inlineCapacity);
+    }
+}
@@ -0,0 +1,252 @@
+package ca.concordia.filesystem.datastructures;
+
+import java.util.Arrays;
+
+// Immutable, versioned view of the inode table. Files are reachable both by slot (a 32-way trie, for
+// listing in slot order) and by name (a 32-way hash trie). with() and without() return a new view that
+// shares every node they did not touch (path copying), so a writer publishes a whole new version with
+// a single reference swap and readers of any version never lock or see a half-made change.
+public final class InodeView {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    // The name trie uses the hash 5 bits per level; past the last level equal hashes share a bucket.
+    private static final int LAST_HASH_SHIFT = 30;
+
+    // One file as of this version. Never modified once published.
+    public static final class Entry {
+        private final String name;
+        private final int size;
+        private final int firstBlock;
+        private final int slot;
+
+        public Entry(String name, int size, int firstBlock, int slot) {
+            this.name = name;
+            this.size = size;
+            this.firstBlock = firstBlock;
+            this.slot = slot;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getFirstBlock() {
+            return firstBlock;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+    }
+
+    private final long version;
+    private final int fileCount;
+    private final int slotShift;
+    private final Object[] slots;
+    private final Object[] names;
+
+    private InodeView(long version, int fileCount, int slotShift, Object[] slots, Object[] names) {
+        this.version = version;
+        this.fileCount = fileCount;
+        this.slotShift = slotShift;
+        this.slots = slots;
+        this.names = names;
+    }
+
+    // Builds version 0 from a mounted inode table, filling fresh nodes in place instead of copying.
+    public static InodeView of(InodeTable table) {
+        int shift = 0;
+        while (shift + BITS < 32 && (long) WIDTH << shift < table.length()) shift += BITS;
+        Object[] slots = new Object[WIDTH];
+        Object[] names = new Object[WIDTH];
+        int count = 0;
+        for (int i = 0; i < table.length(); i++) {
+            if (!table.isUsed(i)) continue;
+            Entry entry = new Entry(table.getName(i), table.getSize(i), table.getFirstBlock(i), i);
+            putSlot(slots, shift, entry, true);
+            putName(names, 0, hash(entry.name), entry, true);
+            count++;
+        }
+        return new InodeView(0, count, shift, slots, names);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public Entry find(String name) {
+        int h = hash(name);
+        Object[] node = names;
+        for (int shift = 0; ; shift += BITS) {
+            Object child = node[(h >>> shift) & MASK];
+            if (child == null) return null;
+            if (child instanceof Entry) {
+                Entry entry = (Entry) child;
+                return entry.name.equals(name) ? entry : null;
+            }
+            if (child instanceof Entry[]) {
+                for (Entry entry : (Entry[]) child) if (entry.name.equals(name)) return entry;
+                return null;
+            }
+            node = (Object[]) child;
+        }
+    }
+
+    public Entry get(int slot) {
+        Object[] node = slots;
+        for (int shift = slotShift; shift > 0; shift -= BITS) {
+            node = (Object[]) node[(slot >>> shift) & MASK];
+            if (node == null) return null;
+        }
+        return (Entry) node[slot & MASK];
+    }
+
+    // The file in the lowest slot at or after slot, or null; skips empty subtrees.
+    public Entry ceiling(int slot) {
+        if (slot < 0) slot = 0;
+        if (slotShift + BITS < 32 && slot >>> (slotShift + BITS) != 0) return null;
+        return ceiling(slots, slotShift, slot);
+    }
+
+    private static Entry ceiling(Object[] node, int shift, int slot) {
+        for (int i = (slot >>> shift) & MASK; i < WIDTH; i++) {
+            Object child = node[i];
+            if (child != null) {
+                if (shift == 0) return (Entry) child;
+                Entry found = ceiling((Object[]) child, shift - BITS, slot);
+                if (found != null) return found;
+            }
+            // Past the first child the whole subtree counts.
+            slot = 0;
+        }
+        return null;
+    }
+
+    // A view where entry's slot and name hold entry, replacing what was there.
+    public InodeView with(Entry entry) {
+        Entry old = get(entry.slot);
+        if (old != null && !old.name.equals(entry.name)) return without(old.slot, old.name).with(entry);
+        Object[] newSlots = slots.clone();
+        boolean added = putSlot(newSlots, slotShift, entry, false);
+        Object[] newNames = names.clone();
+        putName(newNames, 0, hash(entry.name), entry, false);
+        return new InodeView(version + 1, fileCount + (added ? 1 : 0), slotShift, newSlots, newNames);
+    }
+
+    // A view without the file called name in slot; anything else found there is left alone, and so is
+    // the name if it already refers to a file in another slot.
+    public InodeView without(int slot, String name) {
+        Entry current = get(slot);
+        if (current == null || !current.name.equals(name)) return this;
+        Object[] newSlots = slots.clone();
+        removeSlot(newSlots, slotShift, slot);
+        Object[] newNames = names;
+        Entry named = find(name);
+        if (named != null && named.slot == slot) {
+            newNames = names.clone();
+            removeName(newNames, 0, hash(name), name);
+        }
+        return new InodeView(version + 1, fileCount - 1, slotShift, newSlots, newNames);
+    }
+
+    // node is already a private copy (or, when building, owned outright); returns true if the slot was empty.
+    private static boolean putSlot(Object[] node, int shift, Entry entry, boolean inPlace) {
+        for (; shift > 0; shift -= BITS) {
+            int i = (entry.slot >>> shift) & MASK;
+            Object[] child = (Object[]) node[i];
+            child = child == null ? new Object[WIDTH] : inPlace ? child : child.clone();
+            node[i] = child;
+            node = child;
+        }
+        boolean added = node[entry.slot & MASK] == null;
+        node[entry.slot & MASK] = entry;
+        return added;
+    }
+
+    private static void putName(Object[] node, int shift, int h, Entry entry, boolean inPlace) {
+        while (true) {
+            int i = (h >>> shift) & MASK;
+            Object child = node[i];
+            if (child == null || (child instanceof Entry && ((Entry) child).name.equals(entry.name))) {
+                node[i] = entry;
+                return;
+            }
+            if (child instanceof Entry[]) {
+                Entry[] bucket = (Entry[]) child;
+                int at = 0;
+                while (at < bucket.length && !bucket[at].name.equals(entry.name)) at++;
+                bucket = Arrays.copyOf(bucket, Math.max(bucket.length, at + 1));
+                bucket[at] = entry;
+                node[i] = bucket;
+                return;
+            }
+            if (child instanceof Entry) {
+                Entry other = (Entry) child;
+                if (shift >= LAST_HASH_SHIFT) {
+                    node[i] = new Entry[] {other, entry};
+                    return;
+                }
+                // Push the existing entry one level down and carry on inserting there.
+                Object[] split = new Object[WIDTH];
+                split[(hash(other.name) >>> (shift + BITS)) & MASK] = other;
+                node[i] = split;
+                node = split;
+            } else {
+                Object[] next = inPlace ? (Object[]) child : ((Object[]) child).clone();
+                node[i] = next;
+                node = next;
+            }
+            shift += BITS;
+        }
+    }
+
+    // Returns true if node is left empty, so the caller can drop it.
+    private static boolean removeSlot(Object[] node, int shift, int slot) {
+        int i = (slot >>> shift) & MASK;
+        if (shift == 0) {
+            node[i] = null;
+        } else {
+            Object[] child = ((Object[]) node[i]).clone();
+            node[i] = removeSlot(child, shift - BITS, slot) ? null : child;
+        }
+        return isEmpty(node);
+    }
+
+    private static boolean removeName(Object[] node, int shift, int h, String name) {
+        int i = (h >>> shift) & MASK;
+        Object child = node[i];
+        if (child instanceof Entry) {
+            node[i] = null;
+        } else if (child instanceof Entry[]) {
+            Entry[] bucket = (Entry[]) child;
+            Entry[] rest = new Entry[bucket.length - 1];
+            int n = 0;
+            for (Entry entry : bucket) if (!entry.name.equals(name) && n < rest.length) rest[n++] = entry;
+            node[i] = rest.length == 1 ? rest[0] : rest;
+        } else {
+            Object[] next = ((Object[]) child).clone();
+            node[i] = removeName(next, shift + BITS, h, name) ? null : next;
+        }
+        return isEmpty(node);
+    }
+
+    private static boolean isEmpty(Object[] node) {
+        for (Object child : node) if (child != null) return false;
+        return true;
+    }
+
+    private static int hash(String name) {
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
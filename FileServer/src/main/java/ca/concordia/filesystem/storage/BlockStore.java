@@ -0,0 +1,23 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+// Byte-addressed backing store for the file system. Reads and writes are positional, so
+// callers touching disjoint ranges never need to coordinate with each other.
+public interface BlockStore extends Closeable {
+
+    long size();
+
+    void read(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    void write(long position, byte[] buffer, int offset, int length) throws IOException;
+
+    // Sends count bytes starting at position straight to target, without copying them through the heap
+    // where the backend allows it (sendfile for a file channel, the mapping itself for mmap).
+    void transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    // Flushes every completed write to stable storage, whatever the ForcePolicy.
+    void force() throws IOException;
+}
@@ -0,0 +1,238 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Byte-bounded LRU page cache in front of another BlockStore. Pages are spread over independently
+// locked segments, each an access-ordered LinkedHashMap. Every access to a page, including the disk
+// I/O that loads or writes it, happens under its segment's lock, so the cache and the disk never
+// disagree for concurrent writers. Write-through by default; in write-back mode dirty pages reach the
+// disk on eviction, force() or close().
+public class CachingBlockStore implements BlockStore {
+
+    private static final int SEGMENTS = 16;
+
+    private final BlockStore backing;
+    private final int pageSize;
+    private final boolean writeBack;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public CachingBlockStore(BlockStore backing, long capacityBytes, int pageSize, boolean writeBack) {
+        this.backing = backing;
+        this.pageSize = pageSize;
+        this.writeBack = writeBack;
+        long segmentCapacity = Math.max(pageSize, capacityBytes / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new Segment(segmentCapacity);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    private static int segmentIndex(long page) {
+        return (int) ((page ^ (page >>> 16)) & (SEGMENTS - 1));
+    }
+
+    private Segment segmentFor(long page) {
+        return segments[segmentIndex(page)];
+    }
+
+    @Override
+    public long size() {
+        return backing.size();
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            long page = position / pageSize;
+            int inPage = (int) (position - page * pageSize);
+            int n = Math.min(length, pageSize - inPage);
+            Segment segment = segmentFor(page);
+            segment.lock.lock();
+            try {
+                byte[] data = segment.load(page);
+                System.arraycopy(data, inPage, buffer, offset, n);
+            } finally {
+                segment.lock.unlock();
+            }
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (length <= 0) return;
+        if (writeBack) {
+            writeBack(position, buffer, offset, length);
+            return;
+        }
+        // Write-through: hold every segment the range touches (in index order, so writers cannot
+        // deadlock) while the disk and any cached copies of the pages are updated with one write.
+        long firstPage = position / pageSize;
+        long lastPage = (position + length - 1) / pageSize;
+        int mask = 0;
+        for (long page = firstPage; page <= lastPage && mask != (1 << SEGMENTS) - 1; page++)
+            mask |= 1 << segmentIndex(page);
+        for (int i = 0; i < SEGMENTS; i++) if ((mask & (1 << i)) != 0) segments[i].lock.lock();
+        try {
+            backing.write(position, buffer, offset, length);
+            for (long page = firstPage; page <= lastPage; page++) {
+                Page cached = segmentFor(page).pages.get(page);
+                if (cached == null) continue;
+                long pageStart = page * pageSize;
+                long from = Math.max(position, pageStart);
+                long to = Math.min(position + length, pageStart + cached.data.length);
+                if (from < to) System.arraycopy(buffer, (int) (offset + from - position),
+                        cached.data, (int) (from - pageStart), (int) (to - from));
+            }
+        } finally {
+            for (int i = SEGMENTS - 1; i >= 0; i--) if ((mask & (1 << i)) != 0) segments[i].lock.unlock();
+        }
+    }
+
+    private void writeBack(long position, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            long page = position / pageSize;
+            int inPage = (int) (position - page * pageSize);
+            int n = Math.min(length, pageSize - inPage);
+            Segment segment = segmentFor(page);
+            segment.lock.lock();
+            try {
+                Page cached = segment.pages.get(page);
+                if (cached == null) cached = segment.insert(page, readPage(page));
+                System.arraycopy(buffer, offset, cached.data, inPage, n);
+                cached.dirty = true;
+                segment.evict();
+            } finally {
+                segment.lock.unlock();
+            }
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        // Zero-copy reads the disk directly, so any newer bytes still in the cache go down first.
+        if (writeBack) flush(position / pageSize, (position + count - 1) / pageSize);
+        backing.transferTo(position, count, target);
+    }
+
+    @Override
+    public void force() throws IOException {
+        if (writeBack) flush(0, Long.MAX_VALUE);
+        backing.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writeBack) flush(0, Long.MAX_VALUE);
+        backing.close();
+    }
+
+    private void flush(long firstPage, long lastPage) throws IOException {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (Map.Entry<Long, Page> e : segment.pages.entrySet()) {
+                    long page = e.getKey();
+                    if (page >= firstPage && page <= lastPage) writePage(page, e.getValue());
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    private byte[] readPage(long page) throws IOException {
+        long start = page * pageSize;
+        byte[] data = new byte[(int) Math.min(pageSize, backing.size() - start)];
+        backing.read(start, data, 0, data.length);
+        return data;
+    }
+
+    private void writePage(long page, Page cached) throws IOException {
+        if (!cached.dirty) return;
+        backing.write(page * pageSize, cached.data, 0, cached.data.length);
+        cached.dirty = false;
+    }
+
+    private static final class Page {
+        final byte[] data;
+        boolean dirty;
+
+        Page(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Long, Page> pages = new LinkedHashMap<>(64, 0.75f, true);
+        final long capacity;
+        long bytes;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        byte[] load(long page) throws IOException {
+            Page cached = pages.get(page);
+            if (cached != null) {
+                hits.increment();
+                return cached.data;
+            }
+            misses.increment();
+            cached = insert(page, readPage(page));
+            evict();
+            return cached.data;
+        }
+
+        Page insert(long page, byte[] data) {
+            Page cached = new Page(data);
+            pages.put(page, cached);
+            bytes += data.length;
+            cachedBytes.addAndGet(data.length);
+            return cached;
+        }
+
+        // Drops least recently used pages (writing back dirty ones) until the segment fits again.
+        void evict() throws IOException {
+            Iterator<Map.Entry<Long, Page>> it = pages.entrySet().iterator();
+            while (bytes > capacity && it.hasNext()) {
+                Map.Entry<Long, Page> eldest = it.next();
+                writePage(eldest.getKey(), eldest.getValue());
+                it.remove();
+                bytes -= eldest.getValue().data.length;
+                cachedBytes.addAndGet(-eldest.getValue().data.length);
+                evictions.increment();
+            }
+        }
+    }
+}
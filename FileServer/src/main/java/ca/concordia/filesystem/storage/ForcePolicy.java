@@ -0,0 +1,25 @@
+package ca.concordia.filesystem.storage;
+
+public enum ForcePolicy {
+
+    // Every write is forced to the device before it returns (durable, slowest).
+    ALWAYS,
+    // Writes are forced when the store is closed or force() is called.
+    ON_CLOSE,
+    // Flushing is left entirely to the operating system.
+    NEVER;
+
+    public static ForcePolicy parse(String value) {
+        switch (value.trim().toLowerCase()) {
+            case "always":
+                return ALWAYS;
+            case "close":
+            case "on_close":
+                return ON_CLOSE;
+            case "never":
+                return NEVER;
+            default:
+                throw new IllegalArgumentException("Unknown force policy: " + value);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ca.concordia.filesystem.storage;
+
+import ca.concordia.logging.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Write-ahead redo journal in a file next to the disk. A transaction is first appended in memory,
+// which fixes its order; commit() then waits until it is on stable storage and applied to the disk.
+// Commits are grouped: whichever waiting thread finds no flush in progress becomes the leader and
+// writes, fsyncs and applies every record queued so far, so concurrent writers share one fsync.
+// Once the journal grows past checkpointBytes the disk is forced and the journal truncated, which
+// also bounds how much has to be replayed after a crash.
+public class Journal implements Closeable {
+
+    private static final int RECORD_MAGIC = 0x4A524E31; // "JRN1"
+    // magic (4) | payload length (4) | CRC32C of the payload (4)
+    private static final int HEADER_SIZE = 12;
+
+    private final FileChannel channel;
+    private final BlockStore disk;
+    private final long checkpointBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private List<Record> queue = new ArrayList<>();
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean flushing;
+    private IOException failure;
+    // Journal file length; only the leader touches it.
+    private long size;
+    private long commits;
+    private long syncs;
+    private long checkpoints;
+
+    // Opens (or creates) the journal and replays whatever a crash left in it onto disk.
+    public Journal(String filename, BlockStore disk, long checkpointBytes) throws IOException {
+        this.channel = FileChannel.open(Path.of(filename),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.disk = disk;
+        this.checkpointBytes = checkpointBytes;
+        int replayed = replay();
+        if (replayed > 0) Log.info("Journal: replayed %d transactions from %s", replayed, filename);
+    }
+
+    private int replay() throws IOException {
+        long length = channel.size();
+        ByteBuffer bb = ByteBuffer.allocate((int) Math.min(length, Integer.MAX_VALUE - 8));
+        while (bb.hasRemaining() && channel.read(bb, bb.position()) >= 0) { }
+        bb.flip();
+        CRC32C crc = new CRC32C();
+        int replayed = 0;
+        // Records after the first torn or corrupt one were never acknowledged, so replay stops there.
+        while (bb.remaining() >= HEADER_SIZE) {
+            int start = bb.position();
+            if (bb.getInt(start) != RECORD_MAGIC) break;
+            int payloadLength = bb.getInt(start + 4);
+            if (payloadLength < 0 || payloadLength > bb.remaining() - HEADER_SIZE) break;
+            ByteBuffer payload = bb.slice(start + HEADER_SIZE, payloadLength);
+            crc.reset();
+            crc.update(payload.duplicate());
+            if ((int) crc.getValue() != bb.getInt(start + 8)) break;
+            Transaction.decode(payload).apply(disk);
+            bb.position(start + HEADER_SIZE + payloadLength);
+            replayed++;
+        }
+        checkpoint();
+        return replayed;
+    }
+
+    // Queues txn and returns its sequence number. Records reach the disk in the order they were appended.
+    public long append(Transaction txn) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + txn.encodedSize());
+        record.position(HEADER_SIZE);
+        txn.encode(record);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+        record.putInt(0, RECORD_MAGIC).putInt(4, record.capacity() - HEADER_SIZE).putInt(8, (int) crc.getValue());
+        record.rewind();
+        lock.lock();
+        try {
+            queue.add(new Record(record, txn));
+            return ++appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns once transaction seq (and everything appended before it) is durable and applied.
+    public void commit(long seq) throws IOException {
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) throw new IOException("Journal is unusable after an earlier failure.", failure);
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                flushing = true;
+                List<Record> batch = queue;
+                long batchSeq = appendedSeq;
+                queue = new ArrayList<>();
+                lock.unlock();
+                IOException error = null;
+                try {
+                    flush(batch);
+                } catch (IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                    flushing = false;
+                    if (error == null) durableSeq = batchSeq;
+                    else failure = error;
+                    commits += batch.size();
+                    if (!batch.isEmpty()) syncs++;
+                    flushed.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush(List<Record> batch) throws IOException {
+        if (batch.isEmpty()) return;
+        boolean dataWritten = false;
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).bytes;
+            dataWritten |= batch.get(i).txn.isDataWritten();
+        }
+        // Blocks written outside the journal must be durable before the records pointing at them are.
+        // Checkpointing (rather than just forcing the disk) also keeps older records, e.g. the zeroing
+        // of a since-deleted file whose blocks now hold that data, from being replayed over it.
+        if (dataWritten) checkpoint();
+        channel.position(size);
+        long remaining = 0;
+        for (ByteBuffer b : buffers) remaining += b.remaining();
+        size += remaining;
+        while (remaining > 0) remaining -= channel.write(buffers);
+        channel.force(false);
+        for (Record record : batch) record.txn.apply(disk);
+        if (size >= checkpointBytes) checkpoint();
+    }
+
+    // Everything in the journal has been applied; once the disk is forced it can be discarded.
+    private void checkpoint() throws IOException {
+        disk.force();
+        if (size == 0 && checkpoints > 0) return;
+        channel.truncate(0);
+        channel.force(false);
+        size = 0;
+        checkpoints++;
+    }
+
+    public long getCommits() {
+        lock.lock();
+        try {
+            return commits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSyncs() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCheckpoints() {
+        lock.lock();
+        try {
+            return checkpoints;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Commits whatever is still queued, then checkpoints so the next start has nothing to replay.
+    @Override
+    public void close() throws IOException {
+        long last;
+        lock.lock();
+        try {
+            last = appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            commit(last);
+            lock.lock();
+            try {
+                while (flushing) flushed.awaitUninterruptibly();
+                checkpoint();
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static final class Record {
+        final ByteBuffer bytes;
+        final Transaction txn;
+
+        Record(ByteBuffer bytes, Transaction txn) {
+            this.bytes = bytes;
+            this.txn = txn;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// The LZ4 block format in plain Java: a greedy single-pass compressor with a small hash table of recent
+// 4-byte sequences, and a decompressor that checks every length and offset against the buffers. Favors
+// speed over ratio, which is what compressing on the write path calls for.
+public final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 65535;
+    // The format ends with literals: no match starts in the last 12 bytes nor covers the last 5.
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    // After this many misses in a row the search starts skipping ahead, so incompressible data goes fast.
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {
+    }
+
+    public static byte[] compress(byte[] src) {
+        byte[] dst = new byte[src.length + src.length / 255 + 16];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int d = 0;
+        int i = 0;
+        int limit = src.length - MATCH_FIND_LIMIT;
+        int misses = 0;
+        while (i < limit) {
+            int sequence = readInt(src, i);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                i += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            // Extend the match backwards over literals that also match, then forwards.
+            while (i > anchor && ref > 0 && src[i - 1] == src[ref - 1]) {
+                i--;
+                ref--;
+            }
+            int end = i + MIN_MATCH;
+            int maxEnd = src.length - LAST_LITERALS;
+            while (end < maxEnd && src[end] == src[ref + end - i]) end++;
+            d = writeSequence(dst, d, src, anchor, i - anchor, i - ref, end - i - MIN_MATCH);
+            i = anchor = end;
+        }
+        d = writeSequence(dst, d, src, anchor, src.length - anchor, 0, -1);
+        return Arrays.copyOf(dst, d);
+    }
+
+    // Restores the originalLength bytes that compress turned into src[0, length).
+    public static byte[] decompress(byte[] src, int length, int originalLength) throws IOException {
+        byte[] dst = new byte[originalLength];
+        int s = 0;
+        int d = 0;
+        try {
+            while (true) {
+                int token = src[s++] & 0xff;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xff;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (s + literals > length) throw new IOException("Corrupted compressed data.");
+                System.arraycopy(src, s, dst, d, literals);
+                s += literals;
+                d += literals;
+                if (s == length) break;
+                int offset = (src[s] & 0xff) | (src[s + 1] & 0xff) << 8;
+                s += 2;
+                int match = token & 15;
+                if (match == 15) {
+                    int b;
+                    do {
+                        b = src[s++] & 0xff;
+                        match += b;
+                    } while (b == 255);
+                }
+                match += MIN_MATCH;
+                if (offset == 0 || offset > d || d + match > originalLength)
+                    throw new IOException("Corrupted compressed data.");
+                // The match may overlap what it is copying (a repeating pattern), so byte by byte.
+                for (int k = 0; k < match; k++) dst[d + k] = dst[d - offset + k];
+                d += match;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted compressed data.");
+        }
+        if (d != originalLength) throw new IOException("Corrupted compressed data.");
+        return dst;
+    }
+
+    // token | literal length extension | literals | offset (little-endian) | match length extension.
+    // A matchLength of -1 ends the block: literals only.
+    private static int writeSequence(byte[] dst, int d, byte[] src, int from, int literals, int offset, int matchLength) {
+        int token = d++;
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        d = writeLength(dst, d, literals);
+        System.arraycopy(src, from, dst, d, literals);
+        d += literals;
+        if (matchLength < 0) return d;
+        dst[d++] = (byte) offset;
+        dst[d++] = (byte) (offset >>> 8);
+        dst[token] |= (byte) Math.min(matchLength, 15);
+        return writeLength(dst, d, matchLength);
+    }
+
+    private static int writeLength(byte[] dst, int d, int length) {
+        if (length < 15) return d;
+        for (length -= 15; length >= 255; length -= 255) dst[d++] = (byte) 255;
+        dst[d++] = (byte) length;
+        return d;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
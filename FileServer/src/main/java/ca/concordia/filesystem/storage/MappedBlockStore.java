@@ -0,0 +1,100 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// BlockStore that maps the whole disk file into memory. Reads and writes are absolute
+// get/put calls on the mapping, with no syscall and no shared file pointer. Files larger
+// than one mapping are split into fixed-size segments.
+public class MappedBlockStore implements BlockStore {
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final ForcePolicy forcePolicy;
+
+    public MappedBlockStore(String filename, long size, ForcePolicy forcePolicy) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        if (file.length() < size) file.setLength(size);
+        this.size = file.length();
+        this.forcePolicy = forcePolicy;
+        FileChannel channel = file.getChannel();
+        int count = (int) ((this.size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(SEGMENT_SIZE, this.size - start));
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(length, segment.capacity() - index);
+            segment.get(index, buffer, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        checkBounds(position, length);
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int n = Math.min(length, segment.capacity() - index);
+            segment.put(index, buffer, offset, n);
+            if (forcePolicy == ForcePolicy.ALWAYS) segment.force(index, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        checkBounds(position, count);
+        while (count > 0) {
+            MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+            int index = (int) (position & (SEGMENT_SIZE - 1));
+            int n = (int) Math.min(count, segment.capacity() - index);
+            ByteBuffer slice = segment.slice(index, n);
+            while (slice.hasRemaining()) target.write(slice);
+            position += n;
+            count -= n;
+        }
+    }
+
+    private void checkBounds(long position, long length) throws IOException {
+        if (position < 0 || position + length > size)
+            throw new IOException("Access outside the disk: " + position + "+" + length);
+    }
+
+    @Override
+    public void force() {
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (forcePolicy != ForcePolicy.NEVER) force();
+        file.close();
+    }
+}
@@ -0,0 +1,77 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// BlockStore over a RandomAccessFile, using positional FileChannel reads and writes.
+public class RandomAccessBlockStore implements BlockStore {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ForcePolicy forcePolicy;
+
+    public RandomAccessBlockStore(String filename, long size, ForcePolicy forcePolicy) throws IOException {
+        this.file = new RandomAccessFile(filename, "rw");
+        if (file.length() < size) file.setLength(size);
+        this.channel = file.getChannel();
+        this.forcePolicy = forcePolicy;
+    }
+
+    @Override
+    public long size() {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position() - offset) < 0) break;
+        }
+    }
+
+    @Override
+    public void write(long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+        while (bb.hasRemaining()) channel.write(bb, position + bb.position() - offset);
+        if (forcePolicy == ForcePolicy.ALWAYS) channel.force(false);
+    }
+
+    @Override
+    public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        ByteBuffer fallback = null;
+        while (count > 0) {
+            long n = channel.transferTo(position, count, target);
+            if (n == 0) {
+                // The socket is full and transferTo does not wait (sockets used from virtual threads are
+                // non-blocking underneath); a plain write does, so push one chunk through a buffer.
+                if (fallback == null) fallback = ByteBuffer.allocate(64 * 1024);
+                fallback.clear().limit((int) Math.min(fallback.capacity(), count));
+                n = channel.read(fallback, position);
+                if (n <= 0) throw new IOException("Transfer stalled at " + position + ".");
+                fallback.flip();
+                while (fallback.hasRemaining()) target.write(fallback);
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (forcePolicy != ForcePolicy.NEVER) channel.force(false);
+        file.close();
+    }
+}
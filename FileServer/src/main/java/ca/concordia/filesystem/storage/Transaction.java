@@ -0,0 +1,108 @@
+package ca.concordia.filesystem.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The disk changes making up one file system operation, collected so they can be journaled as a
+// single record and then applied together. Each change is a byte image for a position, or a range
+// to zero, so replaying a record any number of times leaves the disk in the same state.
+public class Transaction {
+
+    private static final byte WRITE = 1;
+    private static final byte ZERO = 2;
+    private static final int ZERO_CHUNK = 64 * 1024;
+
+    private final List<Change> changes = new ArrayList<>();
+    private boolean dataWritten;
+
+    public void write(long position, byte[] buffer, int offset, int length) {
+        changes.add(new Change(position, length, Arrays.copyOfRange(buffer, offset, offset + length)));
+    }
+
+    public void write(long position, byte[] bytes) {
+        changes.add(new Change(position, bytes.length, bytes));
+    }
+
+    public void zero(long position, long length) {
+        changes.add(new Change(position, length, null));
+    }
+
+    // Records that the operation also wrote data outside the journal (into blocks nothing referenced
+    // yet), which has to be on stable storage before this transaction is.
+    public void markDataWritten() {
+        dataWritten = true;
+    }
+
+    public boolean isDataWritten() {
+        return dataWritten;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public void apply(BlockStore disk) throws IOException {
+        for (Change change : changes) change.apply(disk);
+    }
+
+    // op (1) | position (8) | length (8) | bytes, for op WRITE only
+    int encodedSize() {
+        int size = 0;
+        for (Change change : changes) size += 17 + (change.bytes != null ? change.bytes.length : 0);
+        return size;
+    }
+
+    void encode(ByteBuffer out) {
+        for (Change change : changes) {
+            out.put(change.bytes != null ? WRITE : ZERO).putLong(change.position).putLong(change.length);
+            if (change.bytes != null) out.put(change.bytes);
+        }
+    }
+
+    static Transaction decode(ByteBuffer in) throws IOException {
+        Transaction txn = new Transaction();
+        while (in.hasRemaining()) {
+            byte op = in.get();
+            long position = in.getLong();
+            long length = in.getLong();
+            if (op == WRITE) {
+                byte[] bytes = new byte[(int) length];
+                in.get(bytes);
+                txn.write(position, bytes);
+            } else if (op == ZERO) {
+                txn.zero(position, length);
+            } else {
+                throw new IOException("Unknown journal operation " + op + ".");
+            }
+        }
+        return txn;
+    }
+
+    private static final class Change {
+        final long position;
+        final long length;
+        final byte[] bytes;
+
+        Change(long position, long length, byte[] bytes) {
+            this.position = position;
+            this.length = length;
+            this.bytes = bytes;
+        }
+
+        void apply(BlockStore disk) throws IOException {
+            if (bytes != null) {
+                disk.write(position, bytes, 0, bytes.length);
+                return;
+            }
+            byte[] zeros = new byte[(int) Math.min(length, ZERO_CHUNK)];
+            for (long done = 0; done < length; ) {
+                int n = (int) Math.min(zeros.length, length - done);
+                disk.write(position + done, zeros, 0, n);
+                done += n;
+            }
+        }
+    }
+}
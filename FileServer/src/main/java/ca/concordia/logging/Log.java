@@ -0,0 +1,111 @@
+package ca.concordia.logging;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Asynchronous, level-controlled logger. Callers only check the level and enqueue; formatting and
+// printing happen on one background thread, so logging never blocks a request on the console lock.
+// When the queue is full messages are dropped (and counted) rather than slowing the caller down.
+// -Dfileserver.logLevel=off|error|warn|info|debug, info by default.
+public final class Log {
+
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+    private static final int QUEUE_SIZE = 8192;
+
+    private static volatile Level level = parse(System.getProperty("fileserver.logLevel", "info"));
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static Level parse(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level: " + value);
+        }
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level l) {
+        return l != Level.OFF && l.compareTo(level) <= 0;
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // The message is a String.format pattern when args are given; it is only formatted if logged. A
+    // Throwable as the last argument also gets its stack trace printed.
+    public static void error(String message, Object... args) {
+        log(Level.ERROR, message, args);
+    }
+
+    public static void warn(String message, Object... args) {
+        log(Level.WARN, message, args);
+    }
+
+    public static void info(String message, Object... args) {
+        log(Level.INFO, message, args);
+    }
+
+    public static void debug(String message, Object... args) {
+        log(Level.DEBUG, message, args);
+    }
+
+    private static void log(Level l, String message, Object[] args) {
+        if (!isEnabled(l)) return;
+        if (!queue.offer(new Entry(l, message, args))) dropped.increment();
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                print(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Prints whatever is still queued; used at shutdown.
+    public static void flush() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) print(entry);
+        System.out.flush();
+    }
+
+    private static void print(Entry entry) {
+        String text = entry.args.length == 0 ? entry.message : String.format(entry.message, entry.args);
+        PrintStream out = entry.level.compareTo(Level.WARN) <= 0 ? System.err : System.out;
+        out.println(text);
+        if (entry.args.length > 0 && entry.args[entry.args.length - 1] instanceof Throwable)
+            ((Throwable) entry.args[entry.args.length - 1]).printStackTrace(out);
+    }
+
+    private static final class Entry {
+        final Level level;
+        final String message;
+        final Object[] args;
+
+        Entry(Level level, String message, Object[] args) {
+            this.level = level;
+            this.message = message;
+            this.args = args;
+        }
+    }
+}
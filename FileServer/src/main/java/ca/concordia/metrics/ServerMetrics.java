@@ -0,0 +1,357 @@
+package ca.concordia.metrics;
+
+import ca.concordia.filesystem.FileSystem;
+import ca.concordia.filesystem.storage.CachingBlockStore;
+import ca.concordia.logging.Log;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+import javax.management.ObjectName;
+
+// Counters shared by every connection of one server: per-command counts, errors and latency
+// histograms, bytes on the wire, connections, and the file system's free space and lock waits.
+// Everything is a LongAdder or atomic, so recording never blocks a request. Exposed through the
+// STATS command (report()) and JMX (register()).
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public enum Command { CREATE, WRITE, WRITEAT, APPEND, READ, DELETE, LIST, PUT, GET, BATCH, STATS, SNAPSHOT }
+
+    private final FileSystem fsManager;
+    // The page caches in front of the disks, one per shard; empty unless -Dfileserver.cacheBytes is set.
+    private final List<CachingBlockStore> caches;
+    private final LongAdder[] counts = new LongAdder[Command.values().length];
+    private final LongAdder[] errors = new LongAdder[Command.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Command.values().length];
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    // fsManager may be null when the file system failed to initialize.
+    public ServerMetrics(FileSystem fsManager) {
+        this(fsManager, List.of());
+    }
+
+    public ServerMetrics(FileSystem fsManager, List<CachingBlockStore> caches) {
+        this.fsManager = fsManager;
+        this.caches = caches;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    // The command a protocol keyword stands for (MULTI counts as BATCH), or null if it is not timed.
+    public static Command command(String keyword) {
+        if (keyword.equals("MULTI")) return Command.BATCH;
+        for (Command c : Command.values()) if (c.name().equals(keyword)) return c;
+        return null;
+    }
+
+    public void record(Command command, long startNanos, boolean ok) {
+        int i = command.ordinal();
+        latencies[i].record(System.nanoTime() - startNanos);
+        counts[i].increment();
+        if (!ok) errors[i].increment();
+    }
+
+    public void addBytesIn(long n) {
+        bytesIn.add(n);
+    }
+
+    public void addBytesOut(long n) {
+        bytesOut.add(n);
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    // Registers the MXBean; -Dfileserver.jmx=false turns it off.
+    public void register(int port) {
+        if (!Boolean.parseBoolean(System.getProperty("fileserver.jmx", "true"))) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("ca.concordia:type=FileServer,port=" + port));
+        } catch (Exception e) {
+            Log.warn("Could not register the JMX metrics: %s", e.getMessage());
+        }
+    }
+
+    // Multi-line reply to STATS, between "Server statistics:" and "(End of stats)".
+    public String report() {
+        StringBuilder sb = new StringBuilder("Server statistics:\n");
+        sb.append(String.format("Connections: %d active, %d accepted%n", getActiveConnections(), getAcceptedConnections()));
+        sb.append(String.format("Bytes: %d in, %d out%n", getBytesIn(), getBytesOut()));
+        if (fsManager != null) {
+            sb.append(String.format("Free: %d of %d blocks, %d of %d inodes, %d shards%n",
+                    getFreeBlocks(), getTotalBlocks(), getFreeInodes(), getTotalInodes(), getShards()));
+            sb.append(String.format("Lock waits: metadata %d (%.3f ms), files %d (%.3f ms)%n",
+                    getMetadataLockContentions(), getMetadataLockWaitMillis(),
+                    getFileLockContentions(), getFileLockWaitMillis()));
+            sb.append(String.format("Snapshots: %d, inode view version %d%n", getSnapshots(), getInodeViewVersion()));
+            sb.append(String.format("Defrag: %d passes, %d%% of this one, %d fragmented files, %d files (%d blocks) moved%n",
+                    getDefragPasses(), getDefragProgress(), getFragmentedFiles(), getDefragMovedFiles(),
+                    getDefragMovedBlocks()));
+            sb.append(String.format("Storage: %d blocks of data in %d blocks (%.2fx), %d dedup hits, codec %d ops at %.1f us%n",
+                    getLogicalBlocks(), getTotalBlocks() - getFreeBlocks(), getCapacityGain(), getDedupHits(),
+                    getCodecOps(), getCodecMicrosPerOp()));
+            sb.append(String.format("Journal: %d commits in %d syncs (%.2f per sync), %d checkpoints%n",
+                    getJournalCommits(), getJournalSyncs(), getJournalCommitsPerSync(), getJournalCheckpoints()));
+            if (!caches.isEmpty())
+                sb.append(String.format("Page cache: %d hits, %d misses (%.1f%% hits), %d evictions, %d bytes cached%n",
+                        getCacheHits(), getCacheMisses(), getCacheHitPercent(), getCacheEvictions(), getCachedBytes()));
+        }
+        for (Command c : Command.values()) {
+            LatencyHistogram h = latencies[c.ordinal()];
+            if (h.getCount() == 0) continue;
+            sb.append(String.format("%s: %d ops, %d errors, p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                    c, counts[c.ordinal()].sum(), errors[c.ordinal()].sum(), h.percentileNanos(0.5) / 1e3,
+                    h.percentileNanos(0.99) / 1e3, h.percentileNanos(0.999) / 1e3, h.getMaxNanos() / 1e3));
+        }
+        return sb.append("(End of stats)").toString();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public int getFreeBlocks() {
+        return fsManager == null ? 0 : fsManager.getFreeBlocks();
+    }
+
+    @Override
+    public int getTotalBlocks() {
+        return fsManager == null ? 0 : fsManager.getMaxBlocks();
+    }
+
+    @Override
+    public int getFreeInodes() {
+        return fsManager == null ? 0 : fsManager.getFreeInodes();
+    }
+
+    @Override
+    public int getTotalInodes() {
+        return fsManager == null ? 0 : fsManager.getMaxFiles();
+    }
+
+    @Override
+    public int getShards() {
+        return fsManager == null ? 0 : fsManager.getShardCount();
+    }
+
+    @Override
+    public int getSnapshots() {
+        return fsManager == null ? 0 : fsManager.getSnapshotCount();
+    }
+
+    @Override
+    public long getInodeViewVersion() {
+        return fsManager == null ? 0 : fsManager.getViewVersion();
+    }
+
+    @Override
+    public long getDefragPasses() {
+        return fsManager == null ? 0 : fsManager.getDefragPasses();
+    }
+
+    @Override
+    public int getDefragProgress() {
+        return fsManager == null ? 0 : fsManager.getDefragProgress();
+    }
+
+    @Override
+    public int getFragmentedFiles() {
+        return fsManager == null ? 0 : fsManager.getFragmentedFiles();
+    }
+
+    @Override
+    public long getDefragMovedFiles() {
+        return fsManager == null ? 0 : fsManager.getDefragMovedFiles();
+    }
+
+    @Override
+    public long getDefragMovedBlocks() {
+        return fsManager == null ? 0 : fsManager.getDefragMovedBlocks();
+    }
+
+    @Override
+    public long getLogicalBlocks() {
+        return fsManager == null ? 0 : fsManager.getLogicalBlocks();
+    }
+
+    // Blocks the files would take stored plainly over the blocks they do take; above 1 with compact storage.
+    @Override
+    public double getCapacityGain() {
+        long used = getTotalBlocks() - getFreeBlocks();
+        return used == 0 ? 1 : (double) getLogicalBlocks() / used;
+    }
+
+    @Override
+    public long getDedupHits() {
+        return fsManager == null ? 0 : fsManager.getDedupHits();
+    }
+
+    @Override
+    public long getCodecOps() {
+        return fsManager == null ? 0 : fsManager.getCodecOps();
+    }
+
+    @Override
+    public double getCodecMicrosPerOp() {
+        long ops = getCodecOps();
+        return ops == 0 ? 0 : fsManager.getCodecNanos() / 1e3 / ops;
+    }
+
+    @Override
+    public long getJournalCommits() {
+        return fsManager == null ? 0 : fsManager.getJournalCommits();
+    }
+
+    @Override
+    public long getJournalSyncs() {
+        return fsManager == null ? 0 : fsManager.getJournalSyncs();
+    }
+
+    // How well group commit works: above 1 once concurrent writers share fsyncs.
+    @Override
+    public double getJournalCommitsPerSync() {
+        long syncs = getJournalSyncs();
+        return syncs == 0 ? 0 : (double) getJournalCommits() / syncs;
+    }
+
+    @Override
+    public long getJournalCheckpoints() {
+        return fsManager == null ? 0 : fsManager.getJournalCheckpoints();
+    }
+
+    @Override
+    public long getCacheHits() {
+        long total = 0;
+        for (CachingBlockStore cache : caches) total += cache.getHits();
+        return total;
+    }
+
+    @Override
+    public long getCacheMisses() {
+        long total = 0;
+        for (CachingBlockStore cache : caches) total += cache.getMisses();
+        return total;
+    }
+
+    @Override
+    public double getCacheHitPercent() {
+        long hits = getCacheHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0 : 100.0 * hits / lookups;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        long total = 0;
+        for (CachingBlockStore cache : caches) total += cache.getEvictions();
+        return total;
+    }
+
+    @Override
+    public long getCachedBytes() {
+        long total = 0;
+        for (CachingBlockStore cache : caches) total += cache.getCachedBytes();
+        return total;
+    }
+
+    @Override
+    public long getMetadataLockContentions() {
+        return fsManager == null ? 0 : fsManager.getMetadataLockContentions();
+    }
+
+    @Override
+    public double getMetadataLockWaitMillis() {
+        return fsManager == null ? 0 : fsManager.getMetadataLockWaitNanos() / 1e6;
+    }
+
+    @Override
+    public long getFileLockContentions() {
+        return fsManager == null ? 0 : fsManager.getFileLockContentions();
+    }
+
+    @Override
+    public double getFileLockWaitMillis() {
+        return fsManager == null ? 0 : fsManager.getFileLockWaitNanos() / 1e6;
+    }
+
+    @Override
+    public long getDroppedLogMessages() {
+        return Log.getDropped();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return perCommand(c -> counts[c.ordinal()].sum());
+    }
+
+    @Override
+    public Map<String, Long> getCommandErrors() {
+        return perCommand(c -> errors[c.ordinal()].sum());
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return perCommandLatency(h -> h.percentileNanos(0.5) / 1e3);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return perCommandLatency(h -> h.percentileNanos(0.99) / 1e3);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP999Micros() {
+        return perCommandLatency(h -> h.percentileNanos(0.999) / 1e3);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMicros() {
+        return perCommandLatency(h -> h.getMaxNanos() / 1e3);
+    }
+
+    private static Map<String, Long> perCommand(ToLongFunction<Command> value) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Command c : Command.values()) map.put(c.name(), value.applyAsLong(c));
+        return map;
+    }
+
+    private Map<String, Double> perCommandLatency(ToDoubleFunction<LatencyHistogram> value) {
+        Map<String, Double> map = new LinkedHashMap<>();
+        for (Command c : Command.values()) map.put(c.name(), value.applyAsDouble(latencies[c.ordinal()]));
+        return map;
+    }
+}
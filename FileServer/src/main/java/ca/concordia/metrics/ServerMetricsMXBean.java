@@ -0,0 +1,90 @@
+package ca.concordia.metrics;
+
+import java.util.Map;
+
+// JMX view of ServerMetrics, registered as ca.concordia:type=FileServer,port=<port>. Map keys are
+// command names; latencies are in microseconds.
+public interface ServerMetricsMXBean {
+
+    int getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getFreeBlocks();
+
+    int getTotalBlocks();
+
+    int getFreeInodes();
+
+    int getTotalInodes();
+
+    int getShards();
+
+    int getSnapshots();
+
+    long getInodeViewVersion();
+
+    long getDefragPasses();
+
+    int getDefragProgress();
+
+    int getFragmentedFiles();
+
+    long getDefragMovedFiles();
+
+    long getDefragMovedBlocks();
+
+    long getLogicalBlocks();
+
+    double getCapacityGain();
+
+    long getDedupHits();
+
+    long getCodecOps();
+
+    double getCodecMicrosPerOp();
+
+    long getJournalCommits();
+
+    long getJournalSyncs();
+
+    double getJournalCommitsPerSync();
+
+    long getJournalCheckpoints();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitPercent();
+
+    long getCacheEvictions();
+
+    long getCachedBytes();
+
+    long getMetadataLockContentions();
+
+    double getMetadataLockWaitMillis();
+
+    long getFileLockContentions();
+
+    double getFileLockWaitMillis();
+
+    long getDroppedLogMessages();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getCommandErrors();
+
+    Map<String, Double> getLatencyP50Micros();
+
+    Map<String, Double> getLatencyP99Micros();
+
+    Map<String, Double> getLatencyP999Micros();
+
+    Map<String, Double> getLatencyMaxMicros();
+}
@@ -0,0 +1,31 @@
+package ca.concordia.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ReentrantLock that keeps track of how often, and for how long, lock() had to wait. An
+// uncontended acquisition costs one extra tryLock and no clock reads.
+public class TimedLock extends ReentrantLock {
+
+    private static final long serialVersionUID = 1L;
+
+    private final LongAdder contentions = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    @Override
+    public void lock() {
+        if (tryLock()) return;
+        long start = System.nanoTime();
+        super.lock();
+        waitNanos.add(System.nanoTime() - start);
+        contentions.increment();
+    }
+
+    public long getContentions() {
+        return contentions.sum();
+    }
+
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+}
@@ -1,90 +1,265 @@
 package ca.concordia.server;
 
-import ca.concordia.filesystem.FileSystemManager;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import ca.concordia.filesystem.FileSink;
+import ca.concordia.filesystem.FileSystem;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 
 public class ClientHandler implements Runnable {
 
+    private static final int BUFFER_SIZE = 8192;
+
     private final Socket clientSocket;
-    private final FileSystemManager fsManager;
+    private final FileSystem fsManager;
+    private final ServerMetrics metrics;
+    private final CommandProcessor processor;
+    // GET sends file extents with sendfile when the socket has a channel (-Dfileserver.zeroCopy=false disables).
+    private final boolean zeroCopy;
 
-    public ClientHandler(Socket clientSocket, FileSystemManager fsManager) {
+    public ClientHandler(Socket clientSocket, FileSystem fsManager, ServerMetrics metrics) {
         this.clientSocket = clientSocket;
         this.fsManager = fsManager;
+        this.metrics = metrics;
+        this.processor = new CommandProcessor(fsManager, metrics);
+        this.zeroCopy = clientSocket.getChannel() != null
+                && Boolean.parseBoolean(System.getProperty("fileserver.zeroCopy", "true"));
     }
 
     @Override
     public void run() {
         try (
-                BufferedReader input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                PrintWriter output = new PrintWriter(clientSocket.getOutputStream(), true)
+                InputStream input = new BufferedInputStream(new CountingInputStream(clientSocket.getInputStream()), BUFFER_SIZE);
+                OutputStream rawOutput = new BufferedOutputStream(new CountingOutputStream(clientSocket.getOutputStream()), BUFFER_SIZE);
+                PrintWriter output = new PrintWriter(new OutputStreamWriter(rawOutput, StandardCharsets.UTF_8))
         ) {
-            output.println("Welcome to the File Server!");
-            output.println("Commands: CREATE <file>, WRITE <file> <data>, READ <file>, DELETE <file>, LIST, EXIT");
+            metrics.connectionOpened();
+            processor.greet(output);
+            output.flush();
             boolean running = true;
             while (running) {
-                String command = input.readLine();
-                if (command == null) break;
-                String[] parts = command.trim().split(" ", 3);
-                String cmd = parts[0].toUpperCase();
+                String command;
                 try {
-                    switch (cmd) {
-                        case "CREATE":
-                            if (parts.length < 2) {
-                                output.println("Usage: CREATE <filename>");
-                                break;
-                            }
-                            fsManager.createFile(parts[1]);
-                            output.println("File created: " + parts[1]);
-                            break;
-                        case "WRITE":
-                            if (parts.length < 3) {
-                                output.println("Usage: WRITE <filename> <data>");
-                                break;
-                            }
-                            fsManager.writeFile(parts[1], parts[2]);
-                            output.println("Wrote data to: " + parts[1]);
-                            break;
-                        case "READ":
-                            if (parts.length < 2) {
-                                output.println("Usage: READ <filename>");
-                                break;
-                            }
-                            String content = fsManager.readFile(parts[1]);
-                            output.println("File content: " + content);
-                            break;
-                        case "DELETE":
-                            if (parts.length < 2) {
-                                output.println("Usage: DELETE <filename>");
-                                break;
-                            }
-                            fsManager.deleteFile(parts[1]);
-                            output.println("File deleted: " + parts[1]);
-                            break;
-                        case "LIST":
-                            output.println("Listing files:");
-                            output.println(fsManager.listFilesToString());
-                            output.println("(End of list)");
-                            break;
-                        case "EXIT":
-                            output.println("Closing connection...");
-                            running = false;
-                            break;
-                        default:
-                            output.println("Unknown command: " + cmd);
-                            break;
-                    }
-                } catch (Exception e) {
+                    command = readLine(input);
+                } catch (ProtocolException e) {
                     output.println("Error: " + e.getMessage());
+                    output.flush();
+                    break;
                 }
+                if (command == null) break;
+                String[] parts = command.trim().split(" ", 3);
+                // Lines inside a BATCH all go to the processor, even ones that look like PUT or GET.
+                switch (processor.isBatching() ? "" : parts[0].toUpperCase()) {
+                    case "PUT":
+                        running = put(parts, input, output);
+                        break;
+                    case "GET":
+                        get(parts, rawOutput, output);
+                        break;
+                    default:
+                        running = processor.execute(command, output);
+                        break;
+                }
+                // Pipelined commands already waiting are answered first, so replies to a whole
+                // burst go out together instead of one packet per line.
+                if (!running || input.available() == 0) output.flush();
             }
             clientSocket.close();
-            System.out.println("Client disconnected: " + clientSocket.getInetAddress());
+            Log.info("Client disconnected: %s", clientSocket.getInetAddress());
+        } catch (Exception e) {
+            Log.error("Client handling error: %s", e.getMessage());
+        } finally {
+            metrics.connectionClosed();
+        }
+    }
+
+    // PUT <file> <length>, followed by exactly length raw bytes. Returns false if the payload was cut
+    // short, since the connection can no longer be parsed after that.
+    private boolean put(String[] parts, InputStream input, PrintWriter output) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(parts.length < 3 ? "" : parts[2].trim());
+        } catch (NumberFormatException e) {
+            output.println("Usage: PUT <filename> <length>");
+            return true;
+        }
+        LimitedInputStream payload = new LimitedInputStream(input, length);
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            fsManager.writeFile(parts[1], payload, length);
+            output.println("Stored " + length + " bytes in: " + parts[1]);
+            ok = true;
         } catch (Exception e) {
-            System.err.println("Client handling error: " + e.getMessage());
+            output.println("Error: " + e.getMessage());
+        } finally {
+            metrics.record(ServerMetrics.Command.PUT, start, ok);
+        }
+        // Skip whatever the file system did not consume (e.g. the file did not exist) to stay in sync.
+        return payload.drain();
+    }
+
+    // GET <file> [offset length]: replies "OK <length>" followed by exactly length raw bytes, the whole file
+    // or up to length bytes of it from offset on.
+    private void get(String[] parts, OutputStream rawOutput, PrintWriter output) throws IOException {
+        int offset = 0;
+        int length = -1;
+        try {
+            String[] range = parts.length == 3 ? parts[2].trim().split(" ") : new String[0];
+            if (range.length == 2) {
+                offset = Integer.parseInt(range[0]);
+                length = Integer.parseInt(range[1]);
+            } else if (range.length != 0) {
+                offset = -1;
+            }
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (parts.length < 2 || offset < 0 || (length < 0 && parts.length == 3)) {
+            output.println("Usage: GET <filename> [offset length]");
+            return;
+        }
+        FileSink sink = new FileSink() {
+            @Override
+            public void begin(int size) throws IOException {
+                output.println("OK " + size);
+                output.flush();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                rawOutput.write(buffer, offset, length);
+            }
+        };
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            if (length >= 0) {
+                fsManager.readFile(parts[1], offset, length, sink);
+            } else if (zeroCopy) {
+                SocketChannel channel = clientSocket.getChannel();
+                int sent = fsManager.transferFile(parts[1], sink, channel);
+                // Bytes sent through the channel bypass the counting stream.
+                metrics.addBytesOut(sent);
+            } else {
+                fsManager.readFile(parts[1], sink);
+            }
+            ok = true;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            output.println("Error: " + e.getMessage());
+        } finally {
+            metrics.record(ServerMetrics.Command.GET, start, ok);
+        }
+    }
+
+    // Reads one '\n'-terminated line of UTF-8 (dropping a trailing '\r'), or null at end of stream. Lines are
+    // capped at MAX_LINE_LENGTH bytes, as in the NIO front end, so a client never sending '\n' cannot fill the heap.
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (line.size() >= CommandProcessor.MAX_LINE_LENGTH) throw new ProtocolException("Command too long.");
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    private final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) metrics.addBytesIn(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) metrics.addBytesIn(n);
+            return n;
+        }
+    }
+
+    private final class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.addBytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            metrics.addBytesOut(length);
+        }
+    }
+
+    // Exposes only the next limit bytes of the connection, so a PUT payload can never eat into
+    // the commands that follow it.
+    private static final class LimitedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        // Discards the unread part of the payload; false if the connection ended first.
+        boolean drain() throws IOException {
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) return false;
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            return true;
         }
     }
 }
@@ -0,0 +1,351 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.BatchOperation;
+import ca.concordia.filesystem.FileSink;
+import ca.concordia.filesystem.FileSystem;
+import ca.concordia.filesystem.ListSink;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Executes one line of the text protocol against the file system. Shared by the blocking
+// ClientHandler and the NIO front end so both modes speak exactly the same protocol. Holds the
+// state of a BATCH being collected, so each connection needs its own instance.
+public class CommandProcessor {
+
+    public static final int MAX_BATCH = 10000;
+    // Longest command line either front end accepts, in bytes; a longer one closes the connection.
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    public static final String WELCOME = "Welcome to the File Server!";
+    public static final String COMMANDS =
+            "Commands: CREATE <file>, WRITE <file> <data>, WRITEAT <file> <offset> <data>, APPEND <file> <data>, "
+                    + "READ <file> [offset length], DELETE <file>, LIST [prefix] [limit] [cursor], PUT <file> <length>, "
+                    + "GET <file> [offset length], BATCH <count>, SNAPSHOT CREATE|DROP|LIST|FILES|READ [name] [file], "
+                    + "STATS, EXIT";
+
+    private static final String SNAPSHOT_USAGE = "Usage: SNAPSHOT CREATE <name> | DROP <name> | LIST"
+            + " | FILES <name> [prefix|*] [limit] [cursor] | READ <name> <filename>";
+
+    private final FileSystem fsManager;
+    private final ServerMetrics metrics;
+    // Lines of the current BATCH still to come; each collected line is an operation or, when it
+    // cannot be batched, the reply explaining why (the other list then holds null).
+    private int batchRemaining;
+    private final List<BatchOperation> batchOperations = new ArrayList<>();
+    private final List<String> batchRejections = new ArrayList<>();
+
+    public CommandProcessor(FileSystem fsManager) {
+        this(fsManager, new ServerMetrics(fsManager));
+    }
+
+    public CommandProcessor(FileSystem fsManager, ServerMetrics metrics) {
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+    }
+
+    public void greet(PrintWriter output) {
+        output.println(WELCOME);
+        output.println(COMMANDS);
+    }
+
+    // Number of lines following command that belong to it, if it opens a batch ("BATCH <n>" or
+    // "MULTI <n>"); 0 otherwise. Front ends that frame the stream themselves use this too.
+    public static int batchSize(String command) {
+        String[] parts = command.trim().split(" ");
+        if (parts.length != 2) return 0;
+        if (!parts[0].equalsIgnoreCase("BATCH") && !parts[0].equalsIgnoreCase("MULTI")) return 0;
+        try {
+            int count = Integer.parseInt(parts[1]);
+            return count > 0 && count <= MAX_BATCH ? count : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // True while the lines of a BATCH are being collected; they must not be treated as commands.
+    public boolean isBatching() {
+        return batchRemaining > 0;
+    }
+
+    // Returns false once the client asked to close the connection.
+    public boolean execute(String command, PrintWriter output) {
+        if (batchRemaining > 0) {
+            collect(command, output);
+            return true;
+        }
+        String[] parts = command.trim().split(" ", 3);
+        String cmd = parts[0].toUpperCase();
+        // A BATCH is timed once all of its lines are in (see collect); PUT and GET by ClientHandler.
+        ServerMetrics.Command timed = ServerMetrics.command(cmd);
+        if (timed == ServerMetrics.Command.BATCH || timed == ServerMetrics.Command.PUT
+                || timed == ServerMetrics.Command.GET) timed = null;
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            switch (cmd) {
+                case "CREATE":
+                case "WRITE":
+                case "DELETE": {
+                    BatchOperation op = parseOperation(parts);
+                    if (op == null) {
+                        output.println(usage(cmd));
+                        break;
+                    }
+                    if (op.getType() == BatchOperation.Type.CREATE) fsManager.createFile(op.getFileName());
+                    else if (op.getType() == BatchOperation.Type.WRITE) fsManager.writeFile(op.getFileName(), op.getData());
+                    else fsManager.deleteFile(op.getFileName());
+                    output.println(success(op));
+                    break;
+                }
+                case "WRITEAT":
+                    writeRange(parts, output);
+                    break;
+                case "APPEND":
+                    if (parts.length < 3) {
+                        output.println("Usage: APPEND <filename> <data>");
+                        break;
+                    }
+                    int size = fsManager.appendFile(parts[1], parts[2]);
+                    output.println("Appended data to: " + parts[1] + " (now " + size + " bytes)");
+                    break;
+                case "READ":
+                    if (parts.length < 2) {
+                        output.println("Usage: READ <filename> [offset length]");
+                        break;
+                    }
+                    if (parts.length == 3) {
+                        readRange(parts, output);
+                        break;
+                    }
+                    String content = fsManager.readFile(parts[1]);
+                    output.println("File content: " + content);
+                    break;
+                case "LIST":
+                    list(command, output);
+                    break;
+                case "PUT":
+                case "GET":
+                    // Raw byte streams are handled by the blocking ClientHandler itself.
+                    output.println("Error: " + cmd + " is only available in blocking connection modes.");
+                    break;
+                case "BATCH":
+                case "MULTI":
+                    batchRemaining = batchSize(command);
+                    if (batchRemaining == 0) output.println("Usage: " + cmd + " <count>, count from 1 to " + MAX_BATCH);
+                    break;
+                case "SNAPSHOT":
+                    snapshot(command, output);
+                    break;
+                case "STATS":
+                    output.println(metrics.report());
+                    break;
+                case "EXIT":
+                    output.println("Closing connection...");
+                    return false;
+                default:
+                    output.println("Unknown command: " + cmd);
+                    break;
+            }
+            ok = true;
+        } catch (Exception e) {
+            output.println("Error: " + e.getMessage());
+        } finally {
+            if (timed != null) metrics.record(timed, start, ok);
+        }
+        return true;
+    }
+
+    // WRITEAT <file> <offset> <data>: writes over the file from offset on, growing it if the data runs past
+    // its end.
+    private void writeRange(String[] parts, PrintWriter output) throws Exception {
+        String[] args = parts.length == 3 ? parts[2].split(" ", 2) : new String[0];
+        int offset;
+        try {
+            offset = args.length == 2 ? Integer.parseInt(args[0]) : -1;
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            output.println("Usage: WRITEAT <filename> <offset> <data>");
+            return;
+        }
+        int size = fsManager.writeFile(parts[1], offset, args[1]);
+        output.println("Wrote data to: " + parts[1] + " at offset " + offset + " (now " + size + " bytes)");
+    }
+
+    // READ <file> <offset> <length>: up to length bytes from offset on, read from just the blocks they are in.
+    private void readRange(String[] parts, PrintWriter output) throws Exception {
+        String[] args = parts[2].trim().split(" ");
+        int offset = -1;
+        int length = -1;
+        try {
+            if (args.length == 2) {
+                offset = Integer.parseInt(args[0]);
+                length = Integer.parseInt(args[1]);
+            }
+        } catch (NumberFormatException e) {
+            offset = -1;
+        }
+        if (offset < 0 || length < 0) {
+            output.println("Usage: READ <filename> [offset length]");
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        fsManager.readFile(parts[1], offset, length, new FileSink() {
+            @Override
+            public void begin(int size) {
+            }
+
+            @Override
+            public void write(byte[] buffer, int from, int count) {
+                content.write(buffer, from, count);
+            }
+        });
+        output.println("File content: " + content);
+    }
+
+    // LIST [prefix] [limit] [cursor], prefix "*" matching every file. Entries are written to output as
+    // they are found rather than collected first. A limited listing that stopped early ends with
+    // "Next cursor: <n>", to be passed back with the same prefix and limit for the next page.
+    private void list(String command, PrintWriter output) throws Exception {
+        String[] args = command.trim().split(" ");
+        String prefix = args.length > 1 && !args[1].equals("*") ? args[1] : "";
+        int limit = Integer.MAX_VALUE;
+        int cursor = 0;
+        try {
+            if (args.length > 2) limit = Integer.parseInt(args[2]);
+            if (args.length > 3) cursor = Integer.parseInt(args[3]);
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        if (args.length > 4 || limit <= 0 || cursor < 0) {
+            output.println("Usage: LIST [prefix|*] [limit] [cursor]");
+            return;
+        }
+        listFiles(null, prefix, limit, cursor, output);
+    }
+
+    // The listing of the live files, or of those in snapshot when it is not null.
+    private void listFiles(String snapshot, String prefix, int limit, int cursor, PrintWriter output) throws Exception {
+        ListSink sink = (name, size) ->
+                output.append(" - ").append(name).append(" (").append(String.valueOf(size)).append(" bytes)\n");
+        // Checked first so an unknown snapshot gets a plain error rather than a header.
+        if (snapshot != null && !fsManager.getSnapshots().containsKey(snapshot)) throw new Exception("Snapshot not found.");
+        output.println("Listing files:");
+        int next = snapshot == null ? fsManager.listFiles(prefix, cursor, limit, sink)
+                : fsManager.listSnapshotFiles(snapshot, prefix, cursor, limit, sink);
+        if (next != -1 && limit != Integer.MAX_VALUE) output.println("Next cursor: " + next);
+        output.println();
+        output.println("(End of list)");
+    }
+
+    // SNAPSHOT CREATE <name>, DROP <name>, LIST, FILES <name> [prefix|*] [limit] [cursor] or READ <name> <file>.
+    private void snapshot(String command, PrintWriter output) throws Exception {
+        String[] args = command.trim().split(" ");
+        String sub = args.length > 1 ? args[1].toUpperCase() : "";
+        if (sub.equals("LIST") && args.length == 2) {
+            output.println("Listing snapshots:");
+            for (Map.Entry<String, Integer> e : fsManager.getSnapshots().entrySet())
+                output.println(" - " + e.getKey() + " (" + e.getValue() + " files)");
+            output.println();
+            output.println("(End of list)");
+        } else if (sub.equals("CREATE") && args.length == 3) {
+            int files = fsManager.createSnapshot(args[2]);
+            output.println("Snapshot created: " + args[2] + " (" + files + " files)");
+        } else if (sub.equals("DROP") && args.length == 3) {
+            fsManager.dropSnapshot(args[2]);
+            output.println("Snapshot dropped: " + args[2]);
+        } else if (sub.equals("READ") && args.length == 4) {
+            output.println("File content: " + fsManager.readSnapshotFile(args[2], args[3]));
+        } else if (sub.equals("FILES") && args.length >= 3 && args.length <= 6) {
+            String prefix = args.length > 3 && !args[3].equals("*") ? args[3] : "";
+            int limit = Integer.MAX_VALUE;
+            int cursor = 0;
+            try {
+                if (args.length > 4) limit = Integer.parseInt(args[4]);
+                if (args.length > 5) cursor = Integer.parseInt(args[5]);
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
+            if (limit > 0 && cursor >= 0) listFiles(args[2], prefix, limit, cursor, output);
+            else output.println(SNAPSHOT_USAGE);
+        } else {
+            output.println(SNAPSHOT_USAGE);
+        }
+    }
+
+    // Adds one line to the batch being collected and runs the batch once it is complete. Replies
+    // come one per line, in order, worded exactly as for the unbatched command.
+    private void collect(String command, PrintWriter output) {
+        String[] parts = command.trim().split(" ", 3);
+        String cmd = parts[0].toUpperCase();
+        BatchOperation op = null;
+        String rejection = null;
+        if (!cmd.equals("CREATE") && !cmd.equals("WRITE") && !cmd.equals("DELETE")) {
+            rejection = "Error: Only CREATE, WRITE and DELETE can be batched.";
+        } else if ((op = parseOperation(parts)) == null) {
+            rejection = usage(cmd);
+        }
+        batchOperations.add(op);
+        batchRejections.add(rejection);
+        if (--batchRemaining > 0) return;
+
+        List<BatchOperation> operations = new ArrayList<>();
+        for (BatchOperation o : batchOperations) if (o != null) operations.add(o);
+        Exception[] results;
+        long start = System.nanoTime();
+        try {
+            results = fsManager.applyBatch(operations);
+        } catch (Exception e) {
+            results = new Exception[operations.size()];
+            Arrays.fill(results, e);
+        }
+        boolean ok = true;
+        for (Exception e : results) ok &= e == null;
+        metrics.record(ServerMetrics.Command.BATCH, start, ok);
+        int next = 0;
+        for (int i = 0; i < batchOperations.size(); i++) {
+            BatchOperation o = batchOperations.get(i);
+            if (o == null) {
+                output.println(batchRejections.get(i));
+                continue;
+            }
+            Exception failure = results[next++];
+            output.println(failure == null ? success(o) : "Error: " + failure.getMessage());
+        }
+        batchOperations.clear();
+        batchRejections.clear();
+    }
+
+    // CREATE <file>, WRITE <file> <data> or DELETE <file>; null if the arguments are missing.
+    private static BatchOperation parseOperation(String[] parts) {
+        switch (parts[0].toUpperCase()) {
+            case "CREATE":
+                return parts.length < 2 ? null : BatchOperation.create(parts[1]);
+            case "WRITE":
+                return parts.length < 3 ? null : BatchOperation.write(parts[1], parts[2]);
+            default:
+                return parts.length < 2 ? null : BatchOperation.delete(parts[1]);
+        }
+    }
+
+    private static String usage(String cmd) {
+        return cmd.equals("WRITE") ? "Usage: WRITE <filename> <data>" : "Usage: " + cmd + " <filename>";
+    }
+
+    private static String success(BatchOperation op) {
+        switch (op.getType()) {
+            case CREATE:
+                return "File created: " + op.getFileName();
+            case WRITE:
+                return "Wrote data to: " + op.getFileName();
+            default:
+                return "File deleted: " + op.getFileName();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package ca.concordia.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs connection handlers according to an ExecutionMode and applies admission control.
+// submit() returns false instead of queueing without bound when the server is saturated.
+public class ConnectionExecutor {
+
+    private final ExecutionMode mode;
+    private final int maxConnections;
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ConnectionExecutor(ExecutionMode mode, int maxConnections, int poolSize, int queueSize) {
+        this.mode = mode;
+        this.maxConnections = maxConnections;
+        switch (mode) {
+            case VIRTUAL:
+                pool = null;
+                executor = Executors.newVirtualThreadPerTaskExecutor();
+                break;
+            case BOUNDED:
+                pool = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+                executor = pool;
+                break;
+            default:
+                pool = null;
+                executor = null;
+                break;
+        }
+    }
+
+    public boolean submit(Runnable handler) {
+        // THREAD_PER_CONNECTION keeps the original behaviour and admits everyone; its connections are
+        // still counted so the queued figure stays right.
+        if (pool == null && admitted.incrementAndGet() > maxConnections
+                && mode != ExecutionMode.THREAD_PER_CONNECTION) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        Runnable task = () -> {
+            active.incrementAndGet();
+            try {
+                handler.run();
+            } finally {
+                active.decrementAndGet();
+                if (pool == null) admitted.decrementAndGet();
+            }
+        };
+        try {
+            if (executor == null) new Thread(task).start();
+            else executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (pool == null) admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    public int getQueuedConnections() {
+        if (pool != null) return pool.getQueue().size();
+        return Math.max(0, admitted.get() - active.get());
+    }
+
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+}
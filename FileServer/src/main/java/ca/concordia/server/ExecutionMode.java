@@ -0,0 +1,30 @@
+package ca.concordia.server;
+
+public enum ExecutionMode {
+
+    // One new platform thread per connection, no limit (the original behaviour).
+    THREAD_PER_CONNECTION,
+    // One virtual thread per connection, capped at maxConnections.
+    VIRTUAL,
+    // A fixed pool of platform threads with a bounded queue of waiting connections.
+    BOUNDED,
+    // Selector event loops own the sockets; only complete commands are run on a worker pool.
+    NIO;
+
+    public static ExecutionMode parse(String value) {
+        switch (value.trim().toLowerCase()) {
+            case "thread":
+            case "thread_per_connection":
+                return THREAD_PER_CONNECTION;
+            case "virtual":
+                return VIRTUAL;
+            case "bounded":
+            case "pool":
+                return BOUNDED;
+            case "nio":
+                return NIO;
+            default:
+                throw new IllegalArgumentException("Unknown execution mode: " + value);
+        }
+    }
+}
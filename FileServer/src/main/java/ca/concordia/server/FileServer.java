@@ -1,150 +1,190 @@
 package ca.concordia.server;
 
+import ca.concordia.filesystem.FileSystem;
 import ca.concordia.filesystem.FileSystemManager;
-import ca.concordia.filesystem.datastructures.FEntry;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import ca.concordia.filesystem.ShardedFileSystem;
+import ca.concordia.filesystem.storage.BlockStore;
+import ca.concordia.filesystem.storage.CachingBlockStore;
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.MappedBlockStore;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FileServer {
 
     private final int port;
-    private final FileSystemManager fsManager;
+    private final int backlog;
+    private final int maxConnections;
+    private final ExecutionMode mode;
+    private final FileSystem fsManager;
+    private final ServerMetrics metrics;
 
     public FileServer() {
         this(12345, "virtual_disk.bin", 4096);
     }
 
     public FileServer(int port, String diskFile, int totalSize) {
+        this(port, diskFile, totalSize, ExecutionMode.parse(System.getProperty("fileserver.mode", "virtual")));
+    }
+
+    public FileServer(int port, String diskFile, int totalSize, ExecutionMode mode) {
+        this(port, diskFile, totalSize,
+                Integer.getInteger("fileserver.blockSize", FileSystemManager.DEFAULT_BLOCK_SIZE),
+                Integer.getInteger("fileserver.maxFiles", FileSystemManager.DEFAULT_MAXFILES), mode);
+    }
+
+    // The disk holds as many blockSize blocks as fit in totalSize once metadata for maxFiles is reserved.
+    // With -Dfileserver.shards=N (N > 1) the files are spread over N such disks: diskFile itself and
+    // diskFile.1 .. diskFile.N-1, each with its own journal. Raising N later moves only the files that
+    // the new shards take over. -Dfileserver.compact=true compresses and deduplicates what is written.
+    public FileServer(int port, String diskFile, int totalSize, int blockSize, int maxFiles, ExecutionMode mode) {
         this.port = port;
-        FileSystemManager manager = null;
+        this.backlog = Integer.getInteger("fileserver.backlog", 1024);
+        this.maxConnections = Integer.getInteger("fileserver.maxConnections", 10000);
+        this.mode = mode;
+        FileSystem manager = null;
+        List<CachingBlockStore> caches = new ArrayList<>();
         try {
-            manager = new FileSystemManager(diskFile, totalSize);
+            int shards = Integer.getInteger("fileserver.shards", 1);
+            List<FileSystemManager> managers = new ArrayList<>();
+            for (int i = 0; i < shards; i++) {
+                String shardFile = i == 0 ? diskFile : diskFile + "." + i;
+                BlockStore disk = openDisk(shardFile, totalSize, caches);
+                FileSystemManager shard = new FileSystemManager(disk, openJournal(shardFile, disk), blockSize, maxFiles);
+                if (Boolean.getBoolean("fileserver.compact")) shard.enableCompactStorage();
+                managers.add(shard);
+            }
+            manager = shards == 1 ? managers.get(0) : new ShardedFileSystem(managers);
+            startDefragmenters(managers);
+            Log.info("The file system has been initialized: %s (%d shards)", diskFile, shards);
         } catch (Exception e) {
-            System.err.println("Error initializing FileSystemManager: " + e.getMessage());
+            Log.error("Error initializing FileSystemManager: %s", e.getMessage());
         }
         fsManager = manager;
+        if (fsManager != null) Runtime.getRuntime().addShutdownHook(new Thread(this::closeFileSystem));
+        metrics = new ServerMetrics(fsManager, caches);
+        metrics.register(port);
         startServer();
     }
 
-    private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("File server started on port " + port);
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
-                ClientHandler handler = new ClientHandler(clientSocket, fsManager);
-                new Thread(handler).start();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    // -Dfileserver.store=raf|mmap selects the disk backend, -Dfileserver.force=never|close|always its durability.
+    // -Dfileserver.cacheBytes=N puts an N-byte LRU page cache in front of it (off by default, since the OS
+    // page cache already covers most workloads); -Dfileserver.cacheMode=write-through|write-back. The cache
+    // is added to caches, whose counters STATS reports.
+    private static BlockStore openDisk(String diskFile, int totalSize, List<CachingBlockStore> caches)
+            throws IOException {
+        ForcePolicy forcePolicy = ForcePolicy.parse(System.getProperty("fileserver.force", "close"));
+        String store = System.getProperty("fileserver.store", "raf");
+        BlockStore disk;
+        switch (store) {
+            case "raf":
+                disk = new RandomAccessBlockStore(diskFile, totalSize, forcePolicy);
+                break;
+            case "mmap":
+                disk = new MappedBlockStore(diskFile, totalSize, forcePolicy);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown block store: " + store);
         }
+        long cacheBytes = Long.getLong("fileserver.cacheBytes", 0);
+        if (cacheBytes <= 0) return disk;
+        String cacheMode = System.getProperty("fileserver.cacheMode", "write-through");
+        if (!cacheMode.equals("write-through") && !cacheMode.equals("write-back"))
+            throw new IllegalArgumentException("Unknown cache mode: " + cacheMode);
+        CachingBlockStore cache = new CachingBlockStore(disk, cacheBytes,
+                Integer.getInteger("fileserver.cachePageSize", 4096), cacheMode.equals("write-back"));
+        caches.add(cache);
+        return cache;
     }
 
-    public static void main(String[] args) {
-        new FileServer();
+    // -Dfileserver.defragRate caps the background defragmenter of each disk in bytes per second (0 turns it
+    // off) and -Dfileserver.defragInterval is the time between its passes in milliseconds.
+    private static void startDefragmenters(List<FileSystemManager> managers) {
+        long rate = Long.getLong("fileserver.defragRate", 4L << 20);
+        if (rate <= 0) return;
+        long interval = Long.getLong("fileserver.defragInterval", 60_000);
+        for (FileSystemManager manager : managers) manager.startDefragmenter(rate, interval);
     }
 
-    public static class ClientHandler implements Runnable {
-
-        private final Socket clientSocket;
-        private final FileSystemManager fsManager;
+    // Changes go through <disk>.journal unless -Dfileserver.journal=false; it is checkpointed (and its
+    // replay bounded) every -Dfileserver.journalCheckpointBytes, 4 MiB by default.
+    private static Journal openJournal(String diskFile, BlockStore disk) throws IOException {
+        if (!Boolean.parseBoolean(System.getProperty("fileserver.journal", "true"))) return null;
+        return new Journal(diskFile + ".journal", disk, Long.getLong("fileserver.journalCheckpointBytes", 4L << 20));
+    }
 
-        public ClientHandler(Socket clientSocket, FileSystemManager fsManager) {
-            this.clientSocket = clientSocket;
-            this.fsManager = fsManager;
+    private void closeFileSystem() {
+        try {
+            fsManager.close();
+        } catch (IOException e) {
+            Log.error("Error closing the file system: %s", e.getMessage());
         }
+    }
 
-        @Override
-        public void run() {
-            try (
-                    BufferedReader input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter output = new PrintWriter(clientSocket.getOutputStream(), true)
-            ) {
-                output.println("Welcome to the File Server!");
-                output.println("Commands: CREATE <file>, WRITE <file> <data>, READ <file>, DELETE <file>, LIST, EXIT");
-                boolean running = true;
-                while (running) {
-                    String command = input.readLine();
-                    if (command == null) break;
-                    String[] parts = command.trim().split(" ", 3);
-                    String cmd = parts[0].toUpperCase();
-                    try {
-                        switch (cmd) {
-                            case "CREATE":
-                                if (parts.length < 2) {
-                                    output.println("Usage: CREATE <filename>");
-                                    break;
-                                }
-                                fsManager.createFile(parts[1]);
-                                output.println("File created: " + parts[1]);
-                                break;
-                            case "WRITE":
-                                if (parts.length < 3) {
-                                    output.println("Usage: WRITE <filename> <data>");
-                                    break;
-                                }
-                                fsManager.writeFile(parts[1], parts[2]);
-                                output.println("Wrote data to: " + parts[1]);
-                                break;
-                            case "READ":
-                                if (parts.length < 2) {
-                                    output.println("Usage: READ <filename>");
-                                    break;
-                                }
-                                String content = fsManager.readFile(parts[1]);
-                                output.println("File content: " + content);
-                                break;
-                            case "DELETE":
-                                if (parts.length < 2) {
-                                    output.println("Usage: DELETE <filename>");
-                                    break;
-                                }
-                                fsManager.deleteFile(parts[1]);
-                                output.println("File deleted: " + parts[1]);
-                                break;
-                            case "LIST":
-                                output.println("Listing files:");
-                                output.println(listFilesToString(fsManager));
-                                output.println("(End of list)");
-                                break;
-                            case "EXIT":
-                                output.println("Closing connection...");
-                                running = false;
-                                break;
-                            default:
-                                output.println("Unknown command: " + cmd);
-                                break;
-                        }
-                    } catch (Exception e) {
-                        output.println("Error: " + e.getMessage());
-                    }
+    private void startServer() {
+        if (mode == ExecutionMode.NIO) {
+            startNioServer();
+            return;
+        }
+        ConnectionExecutor executor = new ConnectionExecutor(mode, maxConnections,
+                Integer.getInteger("fileserver.poolSize", 200),
+                Integer.getInteger("fileserver.queueSize", 1000));
+        // Accepting through a channel gives every client socket a SocketChannel, which GET uses for zero-copy.
+        try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+            serverSocket.bind(new InetSocketAddress(port), backlog);
+            Log.info("File server started on port %d (%s)", port, mode);
+            while (true) {
+                Socket clientSocket = serverSocket.accept().socket();
+                ClientHandler handler = new ClientHandler(clientSocket, fsManager, metrics);
+                if (executor.submit(handler)) {
+                    Log.info("Client connected: %s%s", clientSocket.getInetAddress(), connectionCounts(executor));
+                } else {
+                    Log.warn("Client rejected, server busy: %s%s", clientSocket.getInetAddress(),
+                            connectionCounts(executor));
+                    reject(clientSocket);
                 }
-                clientSocket.close();
-                System.out.println("Client disconnected: " + clientSocket.getInetAddress());
-            } catch (Exception e) {
-                System.err.println("Client handling error: " + e.getMessage());
             }
+        } catch (Exception e) {
+            Log.error("The file server stopped: %s", e.getMessage(), e);
+        } finally {
+            executor.shutdown();
         }
+    }
 
-        private static String listFilesToString(FileSystemManager fsManager) {
-            StringBuilder sb = new StringBuilder();
-            try {
-                java.lang.reflect.Field inodeField = FileSystemManager.class.getDeclaredField("inodeTable");
-                inodeField.setAccessible(true);
-                FEntry[] inodeTable = (FEntry[]) inodeField.get(fsManager);
-                for (FEntry entry : inodeTable) {
-                    if (entry != null) {
-                        sb.append(" - ").append(entry.getFilename())
-                                .append(" (").append(entry.getFilesize()).append(" bytes)\n");
-                    }
-                }
-            } catch (Exception e) {
-                sb.append("Error listing files: ").append(e.getMessage());
-            }
-            return sb.toString();
+    private void startNioServer() {
+        try {
+            NioServer server = new NioServer(port, backlog, maxConnections, fsManager, metrics,
+                    Integer.getInteger("fileserver.eventLoops", Math.min(4, Runtime.getRuntime().availableProcessors())),
+                    Integer.getInteger("fileserver.workers", 64));
+            server.run();
+        } catch (Exception e) {
+            Log.error("The NIO file server stopped: %s", e.getMessage(), e);
+        }
+    }
+
+    private static String connectionCounts(ConnectionExecutor executor) {
+        return " (active " + executor.getActiveConnections() + ", queued " + executor.getQueuedConnections()
+                + ", rejected " + executor.getRejectedConnections() + ")";
+    }
+
+    private static void reject(Socket clientSocket) {
+        try (clientSocket; PrintWriter output = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            output.println("Error: Server is busy, try again later.");
+        } catch (IOException e) {
+            Log.error("Error rejecting client: %s", e.getMessage());
         }
     }
+
+    public static void main(String[] args) {
+        new FileServer();
+    }
 }
@@ -0,0 +1,433 @@
+package ca.concordia.server;
+
+import ca.concordia.filesystem.FileSystem;
+import ca.concordia.logging.Log;
+import ca.concordia.metrics.ServerMetrics;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Selector-based front end. A few event-loop threads own all sockets and split incoming bytes into
+// protocol lines; complete commands run on a worker pool, one at a time per connection so replies
+// stay in order. Idle connections cost a SelectionKey and a small line buffer, not a thread.
+public class NioServer {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Replies to pipelined commands are coalesced into one write of up to this many bytes.
+    private static final int MAX_COALESCED_REPLY = 64 * 1024;
+    // A worker streaming a long reply waits while more than this is queued for a slow client.
+    private static final int MAX_QUEUED_REPLY = 1024 * 1024;
+    // The loop stops reading from a client that has this many commands waiting for the worker.
+    private static final int MAX_QUEUED_COMMANDS = 1024;
+
+    private final int port;
+    private final int backlog;
+    private final int maxConnections;
+    private final FileSystem fsManager;
+    private final ServerMetrics metrics;
+    private final ExecutorService workers;
+    private final EventLoop[] loops;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public NioServer(int port, int backlog, int maxConnections, FileSystem fsManager, ServerMetrics metrics,
+                     int eventLoops, int workerThreads) throws IOException {
+        this.port = port;
+        this.backlog = backlog;
+        this.maxConnections = maxConnections;
+        this.fsManager = fsManager;
+        this.metrics = metrics;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) loops[i] = new EventLoop();
+    }
+
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), backlog);
+            Log.info("File server started on port %d (NIO, %d event loops)", port, loops.length);
+            int next = 0;
+            while (true) {
+                SocketChannel channel = server.accept();
+                if (connections.incrementAndGet() > maxConnections) {
+                    connections.decrementAndGet();
+                    rejected.incrementAndGet();
+                    Log.warn("Client rejected, server busy: %s%s", channel.getRemoteAddress(), connectionCounts());
+                    reject(channel);
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Log.info("Client connected: %s%s", channel.getRemoteAddress(), connectionCounts());
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            workers.shutdownNow();
+            for (EventLoop loop : loops) loop.selector.close();
+        }
+    }
+
+    public int getActiveConnections() {
+        return connections.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejected.get();
+    }
+
+    private String connectionCounts() {
+        return " (active " + connections.get() + ", rejected " + rejected.get() + ")";
+    }
+
+    private static void reject(SocketChannel channel) {
+        try (channel) {
+            channel.write(ByteBuffer.wrap("Error: Server is busy, try again later.\n".getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            Log.error("Error rejecting client: %s", e.getMessage());
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        // Shared by every connection on this loop; only touched by the loop thread.
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null) open(channel);
+                    Connection connection;
+                    while ((connection = pendingWrites.poll()) != null) flush(connection);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) read(connection);
+                        if (key.isValid() && key.isWritable()) flush(connection);
+                    }
+                } catch (Exception e) {
+                    if (selector.isOpen()) Log.error("Event loop error: %s", e.getMessage());
+                }
+            }
+        }
+
+        private void open(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(channel, this);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                metrics.connectionOpened();
+                StringWriter greeting = new StringWriter();
+                connection.processor.greet(new PrintWriter(greeting));
+                connection.send(greeting.toString(), false);
+            } catch (IOException e) {
+                Log.error("Client handling error: %s", e.getMessage());
+                closeQuietly(channel);
+                connections.decrementAndGet();
+            }
+        }
+
+        private void read(Connection connection) {
+            readBuffer.clear();
+            int n;
+            try {
+                n = connection.channel.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                connection.close();
+                return;
+            }
+            metrics.addBytesIn(n);
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (connection.discard > 0) {
+                    int skip = (int) Math.min(connection.discard, readBuffer.remaining());
+                    readBuffer.position(readBuffer.position() + skip);
+                    connection.discard -= skip;
+                    continue;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    connection.lineComplete();
+                } else if (connection.line.size() >= CommandProcessor.MAX_LINE_LENGTH) {
+                    connection.send("Error: Command too long.\n", true);
+                    return;
+                } else {
+                    connection.line.write(b);
+                }
+            }
+            synchronized (connection) {
+                if (!connection.closing && !connection.acceptsInput())
+                    connection.key.interestOps(connection.interestOps());
+            }
+        }
+
+        private void flush(Connection connection) {
+            synchronized (connection) {
+                if (connection.closed) return;
+                try {
+                    while (!connection.output.isEmpty()) {
+                        ByteBuffer buffer = connection.output.peek();
+                        int written = connection.channel.write(buffer);
+                        metrics.addBytesOut(written);
+                        connection.queuedBytes -= written;
+                        if (buffer.hasRemaining()) break;
+                        connection.output.poll();
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                    return;
+                }
+                if (connection.queuedBytes <= MAX_QUEUED_REPLY) connection.notifyAll();
+                if (connection.output.isEmpty() && connection.closing) {
+                    connection.close();
+                    return;
+                }
+                connection.key.interestOps(connection.interestOps());
+            }
+        }
+    }
+
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        // Per connection because it holds the state of a BATCH being collected; used by one worker at a time.
+        private final CommandProcessor processor = new CommandProcessor(fsManager, metrics);
+        private SelectionKey key;
+        // Bytes of a rejected PUT payload still to be skipped, and lines of a BATCH still to come (which
+        // never carry a payload); only touched by the loop thread.
+        private long discard;
+        private int batchLines;
+        // The fields below are guarded by this.
+        private final ArrayDeque<String> commands = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        private long queuedBytes;
+        private boolean scheduled;
+        private boolean closing;
+        private boolean closed;
+        // The loop stopped reading because acceptsInput() was false; drain() asks it to start again.
+        private boolean readPaused;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Called on the loop thread for every '\n'; hands the command to the worker pool.
+        void lineComplete() {
+            String command = line.toString(StandardCharsets.UTF_8);
+            line.reset();
+            if (command.endsWith("\r")) command = command.substring(0, command.length() - 1);
+            if (batchLines > 0) {
+                batchLines--;
+            } else {
+                discard = payloadLength(command);
+                batchLines = CommandProcessor.batchSize(command);
+            }
+            synchronized (this) {
+                if (closing) return;
+                commands.add(command);
+                if (scheduled) return;
+                scheduled = true;
+            }
+            workers.execute(this::drain);
+        }
+
+        // Whether the loop should read more: not while the client is this far ahead of the worker, so one
+        // that sends commands faster than they run cannot grow commands or output without bound.
+        // Called with the lock held.
+        private boolean acceptsInput() {
+            return commands.size() < MAX_QUEUED_COMMANDS && queuedBytes <= MAX_QUEUED_REPLY;
+        }
+
+        // The interest ops the key should have now; called by the loop thread with the lock held.
+        private int interestOps() {
+            readPaused = !closing && !acceptsInput();
+            int ops = closing || readPaused ? 0 : SelectionKey.OP_READ;
+            if (!output.isEmpty()) ops |= SelectionKey.OP_WRITE;
+            return ops;
+        }
+
+        // Runs every queued command, sending the replies once the queue is empty (or the buffered
+        // replies get large) rather than one write per command. Replies are always sent before the
+        // connection is unscheduled, so a later drain cannot overtake them.
+        private void drain() {
+            ReplyWriter response = new ReplyWriter();
+            PrintWriter writer = new PrintWriter(response);
+            while (true) {
+                String command;
+                boolean resume = false;
+                synchronized (this) {
+                    command = commands.poll();
+                    if (closing || (command == null && response.isEmpty())) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (readPaused && acceptsInput()) {
+                        readPaused = false;
+                        resume = true;
+                    }
+                }
+                // The loop recomputes the key's interest ops when it flushes.
+                if (resume) loop.requestWrite(this);
+                if (command == null) {
+                    response.sendBuffered(false);
+                    continue;
+                }
+                if (!processor.execute(command, writer)) {
+                    response.sendBuffered(true);
+                    synchronized (this) {
+                        scheduled = false;
+                    }
+                    return;
+                }
+            }
+        }
+
+        void send(String text, boolean closeAfter) {
+            synchronized (this) {
+                ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+                output.add(buffer);
+                queuedBytes += buffer.remaining();
+                if (closeAfter) closing = true;
+            }
+            loop.requestWrite(this);
+        }
+
+        // Called by a worker only, never the loop thread, which is the one making room.
+        synchronized void awaitRoom() {
+            while (queuedBytes > MAX_QUEUED_REPLY && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        // Collects the replies of drain() and sends them in pieces of about MAX_COALESCED_REPLY bytes, so a
+        // long reply such as a big LIST goes out while it is still being produced instead of being built
+        // whole in memory first.
+        private final class ReplyWriter extends Writer {
+
+            private final StringBuilder buffer = new StringBuilder();
+
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                buffer.append(chars, offset, length);
+                if (buffer.length() >= MAX_COALESCED_REPLY) {
+                    sendBuffered(false);
+                    awaitRoom();
+                }
+            }
+
+            @Override
+            public void write(String text, int offset, int length) {
+                buffer.append(text, offset, offset + length);
+                if (buffer.length() >= MAX_COALESCED_REPLY) {
+                    sendBuffered(false);
+                    awaitRoom();
+                }
+            }
+
+            boolean isEmpty() {
+                return buffer.length() == 0;
+            }
+
+            void sendBuffered(boolean closeAfter) {
+                send(buffer.toString(), closeAfter);
+                buffer.setLength(0);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
+        synchronized void close() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            commands.clear();
+            output.clear();
+            notifyAll();
+            if (key != null) key.cancel();
+            Object address = channel.socket().getInetAddress();
+            closeQuietly(channel);
+            connections.decrementAndGet();
+            metrics.connectionClosed();
+            Log.info("Client disconnected: %s", address);
+        }
+    }
+
+    // PUT carries a raw payload that this front end does not store, so it has to be skipped.
+    private static long payloadLength(String command) {
+        String[] parts = command.trim().split(" ", 3);
+        if (parts.length < 3 || !parts[0].equalsIgnoreCase("PUT")) return 0;
+        try {
+            return Math.max(0, Long.parseLong(parts[2].trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
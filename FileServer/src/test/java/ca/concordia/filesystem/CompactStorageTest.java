@@ -0,0 +1,194 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompactStorageTest {
+
+    private static final int DISK_SIZE = 8 << 20;
+    private static final int BLOCK_SIZE = 256;
+
+    @TempDir
+    Path dir;
+    private FileSystemManager fs;
+    private int totalBlocks;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        fs = mount(true);
+        totalBlocks = fs.getFreeBlocks();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fs.close();
+    }
+
+    private FileSystemManager mount(boolean compact) throws Exception {
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin").toString(), DISK_SIZE,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal").toString(), disk, 1 << 20);
+        FileSystemManager mounted = new FileSystemManager(disk, journal, BLOCK_SIZE, 16);
+        if (compact) mounted.enableCompactStorage();
+        return mounted;
+    }
+
+    private void remount() throws Exception {
+        fs.close();
+        fs = mount(true);
+    }
+
+    private static String random(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('!' + random.nextInt(90)));
+        return sb.toString();
+    }
+
+    private static byte[] read(FileSystem fs, String name) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fs.readFile(name, new FileSink() {
+            @Override
+            public void begin(int size) {
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                out.write(buffer, offset, length);
+            }
+        });
+        return out.toByteArray();
+    }
+
+    private int usedBlocks() {
+        return totalBlocks - fs.getFreeBlocks();
+    }
+
+    @Test
+    void compressibleFilesTakeFewerBlocks() throws Exception {
+        String text = "the same line over and over\n".repeat(500);
+        fs.createFile("log");
+        fs.writeFile("log", text);
+        assertEquals(text, fs.readFile("log"));
+        assertTrue(usedBlocks() < (text.length() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        assertTrue(fs.getLogicalBlocks() > usedBlocks());
+        remount();
+        assertEquals(text, fs.readFile("log"));
+    }
+
+    @Test
+    void sharedChainIsFreedWhenTheLastFileIsDeleted() throws Exception {
+        String data = random(1, 5000);
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", data);
+        int used = usedBlocks();
+        fs.writeFile("b", data);
+        assertEquals(used, usedBlocks());
+        assertEquals(1, fs.getDedupHits());
+
+        fs.deleteFile("a");
+        assertEquals(used, usedBlocks());
+        assertEquals(data, fs.readFile("b"));
+        fs.deleteFile("b");
+        assertEquals(0, usedBlocks());
+    }
+
+    @Test
+    void rewritingASharedFileLeavesTheOtherAlone() throws Exception {
+        String data = random(2, 5000);
+        String other = random(3, 3000);
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", data);
+        fs.writeFile("b", data);
+        int shared = usedBlocks();
+
+        fs.writeFile("b", other);
+        assertEquals(data, fs.readFile("a"));
+        assertEquals(other, fs.readFile("b"));
+        assertTrue(usedBlocks() > shared);
+        // A range write to a shared file gives it a chain of its own too.
+        fs.writeFile("a", data);
+        fs.writeFile("b", data);
+        fs.writeFile("b", 10, "xyz");
+        assertEquals(data, fs.readFile("a"));
+        assertEquals(data.substring(0, 10) + "xyz" + data.substring(13), fs.readFile("b"));
+
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        assertEquals(0, usedBlocks());
+    }
+
+    @Test
+    void remountKeepsSharedChainsCounted() throws Exception {
+        String data = random(4, 5000);
+        for (String name : new String[] {"a", "b", "c"}) {
+            fs.createFile(name);
+            fs.writeFile(name, data);
+        }
+        int used = usedBlocks();
+        remount();
+        assertEquals(used, usedBlocks());
+
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        assertEquals(used, usedBlocks());
+        assertEquals(data, fs.readFile("c"));
+        // The chain is found again by its hash after the remount.
+        fs.createFile("d");
+        fs.writeFile("d", data);
+        assertEquals(1, fs.getDedupHits());
+        assertEquals(used, usedBlocks());
+
+        fs.deleteFile("c");
+        fs.deleteFile("d");
+        assertEquals(0, usedBlocks());
+        // Mounting without compact storage still counts any shares left on the disk.
+        fs.createFile("e");
+        fs.createFile("f");
+        fs.writeFile("e", data);
+        fs.writeFile("f", data);
+        fs.close();
+        fs = mount(false);
+        fs.deleteFile("e");
+        assertEquals(data, fs.readFile("f"));
+        fs.deleteFile("f");
+        assertEquals(0, usedBlocks());
+    }
+
+    @Test
+    void longStreamedWritesAreDeduplicatedWithoutBuffering() throws Exception {
+        byte[] payload = new byte[(1 << 20) + 5000];
+        new Random(5).nextBytes(payload);
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.writeFile("a", new ByteArrayInputStream(payload), payload.length);
+        int used = usedBlocks();
+        fs.writeFile("b", new ByteArrayInputStream(payload), payload.length);
+        assertEquals(used, usedBlocks());
+        assertEquals(1, fs.getDedupHits());
+        assertArrayEquals(payload, read(fs, "b"));
+
+        remount();
+        fs.deleteFile("a");
+        assertArrayEquals(payload, read(fs, "b"));
+        fs.deleteFile("b");
+        assertEquals(0, usedBlocks());
+    }
+}
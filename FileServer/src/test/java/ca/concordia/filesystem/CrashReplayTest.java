@@ -0,0 +1,196 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.filesystem.storage.Transaction;
+import ca.concordia.logging.Log;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Simulates crashes by cutting the journal short, or tearing it, at random offsets and replaying it onto
+// the disk as it was when the journal was last checkpointed: whatever is left must be exactly the
+// transactions whose records were whole.
+class CrashReplayTest {
+
+    private static final int DISK_SIZE = 64 << 10;
+    private static final int FS_DISK_SIZE = 1 << 20;
+    private static final int BLOCK_SIZE = 256;
+    private static final int CRASHES = 200;
+    // Large enough that nothing is checkpointed while the operations run.
+    private static final long NO_CHECKPOINT = 1L << 30;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Log.Level.OFF);
+    }
+
+    @Test
+    void journalReplaysCommittedPrefix() throws Exception {
+        Random random = new Random(11);
+        Path diskFile = dir.resolve("disk.bin");
+        Path journalFile = dir.resolve("disk.journal");
+        // images.get(k) is the disk after k transactions; ends.get(k) where the journal then ended.
+        List<byte[]> images = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        byte[] image = new byte[DISK_SIZE];
+        images.add(image.clone());
+        ends.add(0L);
+        try (RandomAccessBlockStore disk = new RandomAccessBlockStore(diskFile.toString(), DISK_SIZE, ForcePolicy.NEVER);
+             Journal journal = new Journal(journalFile.toString(), disk, NO_CHECKPOINT)) {
+            for (int i = 0; i < 60; i++) {
+                Transaction txn = new Transaction();
+                for (int changes = 1 + random.nextInt(4); changes > 0; changes--) {
+                    int length = 1 + random.nextInt(512);
+                    int position = random.nextInt(DISK_SIZE - length);
+                    if (random.nextInt(4) == 0) {
+                        txn.zero(position, length);
+                        Arrays.fill(image, position, position + length, (byte) 0);
+                    } else {
+                        byte[] bytes = new byte[length];
+                        random.nextBytes(bytes);
+                        txn.write(position, bytes);
+                        System.arraycopy(bytes, 0, image, position, length);
+                    }
+                }
+                journal.commit(journal.append(txn));
+                images.add(image.clone());
+                ends.add(Files.size(journalFile));
+            }
+            byte[] log = Files.readAllBytes(journalFile);
+            for (int crash = 0; crash < CRASHES; crash++) {
+                int offset = random.nextInt(log.length + 1);
+                int committed = committedBefore(ends, offset);
+                // Some of the writes applied after their records were durable may have reached the disk too.
+                byte[] before = images.get(random.nextInt(committed + 1));
+                Path crashDisk = dir.resolve("crash.bin");
+                Path crashJournal = dir.resolve("crash.journal");
+                Files.write(crashDisk, before);
+                Files.write(crashJournal, tear(log, offset, random));
+                try (RandomAccessBlockStore replayed = new RandomAccessBlockStore(crashDisk.toString(), DISK_SIZE,
+                        ForcePolicy.NEVER);
+                     Journal reopened = new Journal(crashJournal.toString(), replayed, NO_CHECKPOINT)) {
+                    byte[] actual = new byte[DISK_SIZE];
+                    replayed.read(0, actual, 0, DISK_SIZE);
+                    assertArrayEquals(images.get(committed), actual, "crash at " + offset);
+                }
+            }
+        }
+    }
+
+    @Test
+    void remountReachesCommittedPrefix() throws Exception {
+        Random random = new Random(12);
+        Path diskFile = dir.resolve("disk.bin");
+        Path journalFile = dir.resolve("disk.journal");
+        // states.get(k) is the files after k operations, free.get(k) the free blocks and ends.get(k) where
+        // the journal then ended.
+        List<Map<String, String>> states = new ArrayList<>();
+        List<Integer> free = new ArrayList<>();
+        List<Long> ends = new ArrayList<>();
+        Map<String, String> files = new TreeMap<>();
+        byte[] mounted;
+        byte[] log;
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(diskFile.toString(), FS_DISK_SIZE, ForcePolicy.NEVER);
+        FileSystemManager fs = new FileSystemManager(disk, new Journal(journalFile.toString(), disk, NO_CHECKPOINT),
+                BLOCK_SIZE, 16);
+        try {
+            mounted = Files.readAllBytes(diskFile);
+            states.add(new TreeMap<>(files));
+            free.add(fs.getFreeBlocks());
+            ends.add(Files.size(journalFile));
+            for (int i = 0; i < 80; i++) {
+                String name = "f" + random.nextInt(12);
+                String data = text(random, random.nextInt(4) == 0 ? random.nextInt(40) : random.nextInt(1500));
+                try {
+                    switch (random.nextInt(5)) {
+                        case 0:
+                            fs.createFile(name);
+                            files.put(name, "");
+                            break;
+                        case 1:
+                            fs.deleteFile(name);
+                            files.remove(name);
+                            break;
+                        case 2:
+                            fs.appendFile(name, data);
+                            files.put(name, files.get(name) + data);
+                            break;
+                        default:
+                            fs.writeFile(name, data);
+                            files.put(name, data);
+                            break;
+                    }
+                } catch (Exception e) {
+                    // The file did not exist, or already did: nothing changed.
+                }
+                states.add(new TreeMap<>(files));
+                free.add(fs.getFreeBlocks());
+                ends.add(Files.size(journalFile));
+            }
+            log = Files.readAllBytes(journalFile);
+        } finally {
+            // Copied above, before closing checkpoints the journal away.
+            fs.close();
+        }
+        for (int crash = 0; crash < CRASHES / 4; crash++) {
+            int offset = ends.get(0).intValue() + random.nextInt(log.length - ends.get(0).intValue() + 1);
+            int committed = committedBefore(ends, offset);
+            Path crashDisk = dir.resolve("crash.bin");
+            Path crashJournal = dir.resolve("crash.journal");
+            Files.write(crashDisk, mounted);
+            Files.write(crashJournal, tear(log, offset, random));
+            RandomAccessBlockStore replayed = new RandomAccessBlockStore(crashDisk.toString(), FS_DISK_SIZE,
+                    ForcePolicy.NEVER);
+            FileSystemManager remounted = new FileSystemManager(replayed,
+                    new Journal(crashJournal.toString(), replayed, NO_CHECKPOINT), BLOCK_SIZE, 16);
+            try {
+                Map<String, String> actual = new TreeMap<>();
+                remounted.listFiles("", 0, 16, (fileName, size) -> actual.put(fileName, null));
+                for (String fileName : actual.keySet()) actual.put(fileName, remounted.readFile(fileName));
+                assertEquals(states.get(committed), actual, "crash at " + offset);
+                assertEquals(free.get(committed), remounted.getFreeBlocks(), "crash at " + offset);
+            } finally {
+                remounted.close();
+            }
+        }
+    }
+
+    // How many operations had their records wholly in the first offset bytes of the journal.
+    private static int committedBefore(List<Long> ends, int offset) {
+        int committed = 0;
+        while (committed + 1 < ends.size() && ends.get(committed + 1) <= offset) committed++;
+        return committed;
+    }
+
+    // The first offset bytes of log, then either nothing (a cut) or the rest of the record they end in
+    // overwritten with garbage (a torn write).
+    private static byte[] tear(byte[] log, int offset, Random random) {
+        if (random.nextBoolean()) return Arrays.copyOf(log, offset);
+        byte[] torn = log.clone();
+        int end = Math.min(log.length, offset + 1 + random.nextInt(64));
+        for (int i = offset; i < end; i++) torn[i] ^= (byte) (1 + random.nextInt(255));
+        return torn;
+    }
+
+    private static String text(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('a' + random.nextInt(26)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,141 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// A file is fragmented by writing it while the only free blocks are the holes between one-block files,
+// then the holes are turned into free space it can be moved into.
+class DefragmenterTest {
+
+    private static final int DISK_SIZE = 64 << 10;
+    private static final int BLOCK_SIZE = 256;
+    private static final int MAX_FILES = 256;
+    private static final int FRAGMENTED_BLOCKS = 20;
+    // Fast enough that pacing never waits.
+    private static final long NO_PACING = 1L << 40;
+
+    @TempDir
+    Path dir;
+    private FileSystemManager fs;
+    private int totalBlocks;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        fs = mount();
+        totalBlocks = fs.getFreeBlocks();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fs.close();
+    }
+
+    private FileSystemManager mount() throws Exception {
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin").toString(), DISK_SIZE,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal").toString(), disk, 1 << 20);
+        return new FileSystemManager(disk, journal, BLOCK_SIZE, MAX_FILES);
+    }
+
+    private static String random(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('!' + random.nextInt(90)));
+        return sb.toString();
+    }
+
+    // Writes name as a file of FRAGMENTED_BLOCKS blocks, none of them next to another, and returns its data.
+    private String writeFragmented(String name) throws Exception {
+        String filler = random(0, 100);
+        int fillers = 0;
+        while (fs.getFreeBlocks() > 0) {
+            fs.createFile("f" + fillers);
+            fs.writeFile("f" + fillers++, filler);
+        }
+        for (int i = 1; i < fillers; i += 2) fs.deleteFile("f" + i);
+        String data = random(1, FRAGMENTED_BLOCKS * BLOCK_SIZE - 10);
+        fs.createFile(name);
+        fs.writeFile(name, data);
+        for (int i = 0; i < fillers; i += 2) fs.deleteFile("f" + i);
+        assertEquals(FRAGMENTED_BLOCKS, extents(name));
+        return data;
+    }
+
+    private int slot(String name) {
+        return fs.currentView().find(name).getSlot();
+    }
+
+    private int extents(String name) throws Exception {
+        return fs.countExtents(slot(name), name);
+    }
+
+    @Test
+    void relocateMovesAFileIntoOneExtent() throws Exception {
+        String data = writeFragmented("frag");
+        int free = fs.getFreeBlocks();
+        assertEquals(FRAGMENTED_BLOCKS, fs.relocate(slot("frag"), "frag", new Defragmenter(fs, NO_PACING, 1000)));
+        assertEquals(1, extents("frag"));
+        assertEquals(data, fs.readFile("frag"));
+        assertEquals(free, fs.getFreeBlocks());
+        // Nothing left to do the second time.
+        assertEquals(0, fs.relocate(slot("frag"), "frag", new Defragmenter(fs, NO_PACING, 1000)));
+
+        fs.close();
+        fs = mount();
+        assertEquals(data, fs.readFile("frag"));
+        assertEquals(1, extents("frag"));
+        assertEquals(free, fs.getFreeBlocks());
+        fs.deleteFile("frag");
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+    }
+
+    @Test
+    void filesHeldByASnapshotStayWhereTheyAre() throws Exception {
+        String data = writeFragmented("frag");
+        fs.createSnapshot("s");
+        assertEquals(0, fs.relocate(slot("frag"), "frag", new Defragmenter(fs, NO_PACING, 1000)));
+        assertEquals(FRAGMENTED_BLOCKS, extents("frag"));
+        fs.dropSnapshot("s");
+        assertEquals(FRAGMENTED_BLOCKS, fs.relocate(slot("frag"), "frag", new Defragmenter(fs, NO_PACING, 1000)));
+        assertEquals(data, fs.readFile("frag"));
+    }
+
+    @Test
+    void anAbandonedCopyGivesItsBlocksBack() throws Exception {
+        String data = writeFragmented("frag");
+        int free = fs.getFreeBlocks();
+        Defragmenter stopped = new Defragmenter(fs, NO_PACING, 1000);
+        stopped.stop();
+        assertEquals(0, fs.relocate(slot("frag"), "frag", stopped));
+        assertEquals(FRAGMENTED_BLOCKS, extents("frag"));
+        assertEquals(data, fs.readFile("frag"));
+        assertEquals(free, fs.getFreeBlocks());
+    }
+
+    @Test
+    void backgroundPassesFindAndMoveFragmentedFiles() throws Exception {
+        String data = writeFragmented("frag");
+        fs.createFile("small");
+        fs.writeFile("small", "inline");
+        fs.startDefragmenter(NO_PACING, 10);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (fs.getDefragMovedFiles() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(1, fs.getDefragMovedFiles());
+        assertEquals(FRAGMENTED_BLOCKS, fs.getDefragMovedBlocks());
+        assertEquals(1, extents("frag"));
+        assertEquals(data, fs.readFile("frag"));
+        assertEquals("inline", fs.readFile("small"));
+    }
+}
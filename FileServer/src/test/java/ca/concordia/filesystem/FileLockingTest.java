@@ -0,0 +1,176 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Concurrent use of the per-file locks: readers of a file see whole versions only, files that share nothing
+// do not wait for each other, and churn from several threads leaves the allocators as they started.
+class FileLockingTest {
+
+    private static final int DISK_SIZE = 8 << 20;
+    private static final int BLOCK_SIZE = 256;
+    private static final int MAX_FILES = 16;
+
+    @TempDir
+    Path dir;
+    private FileSystemManager fs;
+    private ExecutorService pool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        fs = mount();
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        pool.shutdownNow();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+        fs.close();
+    }
+
+    private FileSystemManager mount() throws Exception {
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin").toString(), DISK_SIZE,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal").toString(), disk, 1 << 20);
+        return new FileSystemManager(disk, journal, BLOCK_SIZE, MAX_FILES);
+    }
+
+    // A version is one character repeated; its length depends on the character, so a read that mixed two
+    // versions shows up either as a mixed character or a wrong length.
+    private static String version(int writer, int round) {
+        char c = (char) ('A' + (writer * 7 + round) % 26);
+        return String.valueOf(c).repeat(length(c));
+    }
+
+    private static int length(char c) {
+        return 300 + (c - 'A') * 97;
+    }
+
+    private static void join(List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) future.get(60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void readersOfARewrittenFileSeeWholeVersions() throws Exception {
+        fs.createFile("shared");
+        fs.writeFile("shared", version(0, 0));
+        int free = fs.getFreeBlocks();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            futures.add(pool.submit(() -> {
+                for (int round = 0; round < 200; round++) fs.writeFile("shared", version(writer, round));
+                return null;
+            }));
+        }
+        for (int r = 0; r < 4; r++) {
+            futures.add(pool.submit(() -> {
+                for (int reads = 0; reads < 500; reads++) {
+                    String data = fs.readFile("shared");
+                    char c = data.charAt(0);
+                    assertEquals(length(c), data.length());
+                    assertEquals(String.valueOf(c).repeat(data.length()), data);
+                }
+                return null;
+            }));
+        }
+        join(futures);
+
+        String last = fs.readFile("shared");
+        int blocks = (last.length() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        assertEquals(free + (version(0, 0).length() + BLOCK_SIZE - 1) / BLOCK_SIZE - blocks, fs.getFreeBlocks());
+        fs.close();
+        fs = mount();
+        assertEquals(last, fs.readFile("shared"));
+    }
+
+    @Test
+    void aSlowReaderDoesNotHoldUpOtherFiles() throws Exception {
+        fs.createFile("slow");
+        fs.createFile("other");
+        fs.writeFile("slow", "s".repeat(2000));
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> reader = pool.submit(() -> {
+            fs.readFile("slow", new FileSink() {
+                @Override
+                public void begin(int size) throws IOException {
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) {
+                }
+            });
+            return null;
+        });
+        assertTrue(reading.await(10, TimeUnit.SECONDS));
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            fs.writeFile("other", "o".repeat(3000));
+            assertEquals("o".repeat(3000), fs.readFile("other"));
+            fs.createFile("new");
+            fs.deleteFile("new");
+            assertEquals("s".repeat(2000), fs.readFile("slow"));
+        });
+        release.countDown();
+        reader.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void churnOnDistinctFilesLeavesTheAllocatorsAsTheyWere() throws Exception {
+        int freeBlocks = fs.getFreeBlocks();
+        int freeInodes = fs.getFreeInodes();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            String name = "churn" + t;
+            int seed = t;
+            futures.add(pool.submit(() -> {
+                for (int round = 0; round < 100; round++) {
+                    String data = version(seed, round);
+                    fs.createFile(name);
+                    fs.writeFile(name, data);
+                    fs.appendFile(name, "tail");
+                    assertEquals(data + "tail", fs.readFile(name));
+                    fs.deleteFile(name);
+                }
+                return null;
+            }));
+        }
+        join(futures);
+
+        assertEquals(freeBlocks, fs.getFreeBlocks());
+        assertEquals(freeInodes, fs.getFreeInodes());
+        fs.close();
+        fs = mount();
+        assertEquals(freeBlocks, fs.getFreeBlocks());
+        assertEquals(freeInodes, fs.getFreeInodes());
+    }
+}
@@ -0,0 +1,196 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Random WRITEAT, APPEND and whole-file writes checked against a StringBuilder per file, with range reads
+// and a remount every so often. Offsets and lengths are picked to land on and across block boundaries and
+// to move files in and out of their inode records.
+class RangeWriteTest {
+
+    private static final int DISK_SIZE = 8 << 20;
+    private static final int BLOCK_SIZE = 256;
+    private static final int INLINE_CAPACITY = 44;
+    private static final int STEPS = 600;
+
+    @TempDir
+    Path dir;
+    private FileSystemManager fs;
+    private boolean compact;
+    private int totalBlocks;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        fs = mount();
+        totalBlocks = fs.getFreeBlocks();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fs.close();
+    }
+
+    private FileSystemManager mount() throws Exception {
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin").toString(), DISK_SIZE,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal").toString(), disk, 1 << 20);
+        FileSystemManager mounted = new FileSystemManager(disk, journal, BLOCK_SIZE, 16);
+        if (compact) mounted.enableCompactStorage();
+        return mounted;
+    }
+
+    private void remount() throws Exception {
+        fs.close();
+        fs = mount();
+    }
+
+    private static String random(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('!' + random.nextInt(90)));
+        return sb.toString();
+    }
+
+    // Mostly short runs, sometimes whole blocks' worth, and sometimes a length that ends on a block boundary.
+    private static int length(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return 1 + random.nextInt(8);
+            case 1:
+                return BLOCK_SIZE * (1 + random.nextInt(3)) - random.nextInt(2);
+            default:
+                return 1 + random.nextInt(3 * BLOCK_SIZE);
+        }
+    }
+
+    private static int offset(Random random, int size) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return size;
+            case 1:
+                return size / BLOCK_SIZE * BLOCK_SIZE;
+            default:
+                return random.nextInt(size + 1);
+        }
+    }
+
+    private static String readRange(FileSystem fs, String name, int offset, int length) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] announced = {-1};
+        int count = fs.readFile(name, offset, length, new FileSink() {
+            @Override
+            public void begin(int size) {
+                announced[0] = size;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+                out.write(buffer, offset, length);
+            }
+        });
+        assertEquals(count, announced[0]);
+        assertEquals(count, out.size());
+        return out.toString();
+    }
+
+    private static int blocks(int size) {
+        return size <= INLINE_CAPACITY ? 0 : (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private void check(Map<String, StringBuilder> model, Random random) throws Exception {
+        int used = 0;
+        for (Map.Entry<String, StringBuilder> e : model.entrySet()) {
+            String expected = e.getValue().toString();
+            assertEquals(expected, fs.readFile(e.getKey()));
+            int offset = random.nextInt(expected.length() + 1);
+            int length = random.nextInt(2 * BLOCK_SIZE);
+            assertEquals(expected.substring(offset, Math.min(expected.length(), offset + length)),
+                    readRange(fs, e.getKey(), offset, length));
+            used += blocks(expected.length());
+        }
+        // Compressed files take fewer blocks, so only the plain layout has an exact count.
+        if (!compact) assertEquals(totalBlocks - used, fs.getFreeBlocks());
+    }
+
+    private void modelCheck(long seed) throws Exception {
+        Random random = new Random(seed);
+        Map<String, StringBuilder> model = new LinkedHashMap<>();
+        for (String name : new String[] {"a", "b", "c"}) {
+            fs.createFile(name);
+            model.put(name, new StringBuilder());
+        }
+        String[] names = model.keySet().toArray(new String[0]);
+        for (int step = 1; step <= STEPS; step++) {
+            String name = names[random.nextInt(names.length)];
+            StringBuilder file = model.get(name);
+            int choice = random.nextInt(10);
+            if (choice < 5) {
+                int offset = offset(random, file.length());
+                String data = random(random, length(random));
+                int size = fs.writeFile(name, offset, data);
+                file.replace(offset, Math.min(file.length(), offset + data.length()), data);
+                assertEquals(file.length(), size);
+            } else if (choice < 8) {
+                String data = random(random, length(random));
+                int size = fs.appendFile(name, data);
+                file.append(data);
+                assertEquals(file.length(), size);
+            } else {
+                // A whole-file write keeps the files from growing without bound and shrinks them back inline.
+                String data = random(random, random.nextBoolean() ? random.nextInt(INLINE_CAPACITY + 1) : length(random));
+                fs.writeFile(name, data);
+                file.setLength(0);
+                file.append(data);
+            }
+            check(model, random);
+            if (step % 100 == 0) {
+                remount();
+                check(model, random);
+            }
+        }
+        for (String name : names) fs.deleteFile(name);
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+    }
+
+    @Test
+    void rangeWritesMatchAModel() throws Exception {
+        modelCheck(21);
+    }
+
+    @Test
+    void rangeWritesToCompressedFilesMatchAModel() throws Exception {
+        fs.close();
+        compact = true;
+        fs = mount();
+        modelCheck(22);
+    }
+
+    @Test
+    void rangesPastTheEndAreRejected() throws Exception {
+        fs.createFile("f");
+        fs.writeFile("f", "x".repeat(1000));
+        assertThrows(Exception.class, () -> fs.writeFile("f", 1001, "y"));
+        assertThrows(Exception.class, () -> fs.writeFile("f", -1, "y"));
+        assertThrows(Exception.class, () -> readRange(fs, "f", 1001, 1));
+        assertThrows(Exception.class, () -> fs.appendFile("missing", "y"));
+        assertEquals("x".repeat(1000), fs.readFile("f"));
+        assertEquals("", readRange(fs, "f", 1000, 10));
+        // Writing at the very end is an append.
+        assertEquals(1003, fs.writeFile("f", 1000, "end"));
+        assertEquals("xxend", readRange(fs, "f", 998, 100));
+    }
+}
@@ -0,0 +1,149 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.datastructures.HashRing;
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Remounting the shards with one more moves the files the new shard owns onto it: afterwards every file
+// is on the shard the ring names, reads back the same, and is listed exactly once.
+class ShardRebalanceTest {
+
+    private static final int DISK_SIZE = 1 << 20;
+    private static final int BLOCK_SIZE = 256;
+    private static final int MAX_FILES = 64;
+    private static final int FILES = 120;
+
+    @TempDir
+    Path dir;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Log.Level.OFF);
+    }
+
+    private FileSystemManager mountShard(int shard) throws Exception {
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin." + shard).toString(), DISK_SIZE,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal." + shard).toString(), disk, 1 << 20);
+        return new FileSystemManager(disk, journal, BLOCK_SIZE, MAX_FILES);
+    }
+
+    private List<FileSystemManager> mountShards(int count) throws Exception {
+        List<FileSystemManager> shards = new ArrayList<>();
+        for (int shard = 0; shard < count; shard++) shards.add(mountShard(shard));
+        return shards;
+    }
+
+    private static String random(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('!' + random.nextInt(90)));
+        return sb.toString();
+    }
+
+    // Pages through the whole listing limit entries at a time, failing on any name listed twice.
+    private static Map<String, Integer> list(FileSystem fs, int limit) throws Exception {
+        Map<String, Integer> files = new TreeMap<>();
+        int cursor = 0;
+        do {
+            cursor = fs.listFiles("", cursor, limit, (name, size) -> assertEquals(null, files.put(name, size), name));
+        } while (cursor != -1);
+        return files;
+    }
+
+    @Test
+    void addingAShardMovesOnlyWhatItOwns() throws Exception {
+        Map<String, String> contents = new TreeMap<>();
+        int used;
+        ShardedFileSystem fs = new ShardedFileSystem(mountShards(3));
+        try {
+            for (int i = 0; i < FILES; i++) {
+                String name = "file" + i;
+                // A mix of inline files and files of one or several blocks.
+                String data = random(i, i % 3 == 0 ? 20 : 100 + i * 17);
+                fs.createFile(name);
+                fs.writeFile(name, data);
+                contents.put(name, data);
+            }
+            used = fs.getMaxBlocks() - fs.getFreeBlocks();
+        } finally {
+            fs.close();
+        }
+
+        HashRing before = new HashRing(3);
+        HashRing after = new HashRing(4);
+        List<FileSystemManager> shards = mountShards(4);
+        fs = new ShardedFileSystem(shards);
+        try {
+            for (Map.Entry<String, String> e : contents.entrySet()) assertEquals(e.getValue(), fs.readFile(e.getKey()));
+            for (int limit : new int[] {1000, 7, 1}) {
+                Map<String, Integer> listed = list(fs, limit);
+                assertEquals(contents.keySet(), listed.keySet());
+                for (Map.Entry<String, Integer> e : listed.entrySet())
+                    assertEquals(contents.get(e.getKey()).length(), e.getValue());
+            }
+            for (int shard = 0; shard < 4; shard++) {
+                for (String name : list(shards.get(shard), 1000).keySet()) {
+                    assertEquals(after.shardFor(name), shard, name);
+                    // The old shards only gave files up; nothing moved between them.
+                    if (shard < 3) assertEquals(before.shardFor(name), shard, name);
+                }
+            }
+            assertTrue(list(shards.get(3), 1000).size() > FILES / 8);
+            assertEquals(used, fs.getMaxBlocks() - fs.getFreeBlocks());
+        } finally {
+            fs.close();
+        }
+
+        // Mounting the same shards again finds nothing out of place.
+        fs = new ShardedFileSystem(mountShards(4));
+        try {
+            assertEquals(contents.keySet(), list(fs, 1000).keySet());
+            assertEquals(used, fs.getMaxBlocks() - fs.getFreeBlocks());
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test
+    void aMoveCutShortIsFinishedOnTheNextMount() throws Exception {
+        HashRing ring = new HashRing(2);
+        String name = "moved0";
+        for (int i = 1; ring.shardFor(name) != 1; i++) name = "moved" + i;
+        String data = random(1, 3000);
+        // As if a crash came after the copy to shard 1 had started but before shard 0 gave the file up.
+        List<FileSystemManager> shards = mountShards(2);
+        shards.get(0).createFile(name);
+        shards.get(0).writeFile(name, data);
+        shards.get(1).createFile(name);
+        shards.get(1).writeFile(name, data.substring(0, 500));
+        for (FileSystemManager shard : shards) shard.close();
+
+        shards = mountShards(2);
+        ShardedFileSystem fs = new ShardedFileSystem(shards);
+        try {
+            assertEquals(data, fs.readFile(name));
+            assertEquals(Set.of(name), list(fs, 10).keySet());
+            assertTrue(list(shards.get(0), 10).isEmpty());
+            // Only the whole copy is left taking blocks.
+            assertEquals((data.length() + BLOCK_SIZE - 1) / BLOCK_SIZE, fs.getMaxBlocks() - fs.getFreeBlocks());
+        } finally {
+            fs.close();
+        }
+    }
+}
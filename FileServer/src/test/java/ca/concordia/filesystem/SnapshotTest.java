@@ -0,0 +1,186 @@
+package ca.concordia.filesystem;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Blocks held by a snapshot or by a read in progress must keep their old contents while the live files
+// move on, and must all be freed once the last holder lets go.
+class SnapshotTest {
+
+    private static final int DISK_SIZE = 8 << 20;
+    private static final int BLOCK_SIZE = 256;
+
+    @TempDir
+    Path dir;
+    private FileSystemManager fs;
+    private int totalBlocks;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        fs = mount(false);
+        totalBlocks = fs.getFreeBlocks();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fs.close();
+    }
+
+    private FileSystemManager mount(boolean compact) throws Exception {
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin").toString(), DISK_SIZE,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal").toString(), disk, 1 << 20);
+        FileSystemManager mounted = new FileSystemManager(disk, journal, BLOCK_SIZE, 16);
+        if (compact) mounted.enableCompactStorage();
+        return mounted;
+    }
+
+    private static String random(long seed, int length) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('!' + random.nextInt(90)));
+        return sb.toString();
+    }
+
+    private Map<String, Integer> listSnapshot(String snapshot) throws Exception {
+        Map<String, Integer> files = new TreeMap<>();
+        fs.listSnapshotFiles(snapshot, "", 0, 100, files::put);
+        return files;
+    }
+
+    @Test
+    void snapshotKeepsFilesAsTheyWere() throws Exception {
+        String a = random(1, 3000);
+        String b = random(2, 5000);
+        String c = "short";
+        fs.createFile("a");
+        fs.createFile("b");
+        fs.createFile("c");
+        fs.writeFile("a", a);
+        fs.writeFile("b", b);
+        fs.writeFile("c", c);
+        int free = fs.getFreeBlocks();
+        assertEquals(3, fs.createSnapshot("s1"));
+        assertEquals(free, fs.getFreeBlocks());
+
+        fs.writeFile("a", random(3, 4000));
+        fs.appendFile("a", "more");
+        fs.writeFile("b", 100, "xyz");
+        fs.deleteFile("c");
+        fs.createFile("d");
+        fs.writeFile("d", random(4, 1000));
+        assertEquals(a, fs.readSnapshotFile("s1", "a"));
+        assertEquals(b, fs.readSnapshotFile("s1", "b"));
+        assertEquals(c, fs.readSnapshotFile("s1", "c"));
+        assertThrows(Exception.class, () -> fs.readSnapshotFile("s1", "d"));
+        assertEquals(Map.of("a", a.length(), "b", b.length(), "c", c.length()), listSnapshot("s1"));
+        assertEquals(b.substring(0, 100) + "xyz" + b.substring(103), fs.readFile("b"));
+
+        // A second snapshot shares the blocks the first one still holds.
+        fs.createSnapshot("s2");
+        fs.deleteFile("a");
+        fs.deleteFile("b");
+        fs.deleteFile("d");
+        assertTrue(fs.getFreeBlocks() < totalBlocks);
+        fs.dropSnapshot("s1");
+        assertThrows(Exception.class, () -> fs.readSnapshotFile("s1", "a"));
+        assertEquals(b.substring(0, 100) + "xyz" + b.substring(103), fs.readSnapshotFile("s2", "b"));
+        fs.dropSnapshot("s2");
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+
+        fs.close();
+        fs = mount(false);
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+    }
+
+    @Test
+    void droppingASnapshotOfLiveFilesFreesNothingTheyUse() throws Exception {
+        String data = random(5, 6000);
+        fs.createFile("a");
+        fs.writeFile("a", data);
+        int free = fs.getFreeBlocks();
+        fs.createSnapshot("s");
+        fs.writeFile("a", 10, "changed");
+        assertTrue(fs.getFreeBlocks() < free);
+        fs.dropSnapshot("s");
+        assertEquals(free, fs.getFreeBlocks());
+        assertEquals(data.substring(0, 10) + "changed" + data.substring(17), fs.readFile("a"));
+        fs.deleteFile("a");
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+    }
+
+    @Test
+    void compressedFilesAreKeptToo() throws Exception {
+        fs.close();
+        fs = mount(true);
+        String text = "a line that compresses well\n".repeat(300);
+        fs.createFile("log");
+        fs.writeFile("log", text);
+        fs.createSnapshot("s");
+        fs.writeFile("log", random(6, 2000));
+        assertEquals(text, fs.readSnapshotFile("s", "log"));
+        fs.deleteFile("log");
+        assertEquals(text, fs.readSnapshotFile("s", "log"));
+        fs.dropSnapshot("s");
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+    }
+
+    @Test
+    void readInProgressSurvivesRewriteAndDelete() throws Exception {
+        // Several stream buffers long, so the sink is called back more than once.
+        byte[] payload = new byte[300_000];
+        new Random(7).nextBytes(payload);
+        fs.createFile("big");
+        fs.writeFile("big", new ByteArrayInputStream(payload), payload.length);
+        String replacement = random(8, 10_000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] writes = {0};
+        int size = fs.readFile("big", new FileSink() {
+            @Override
+            public void begin(int size) {
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                if (writes[0]++ > 0) return;
+                // No lock is held while the data goes out, so the file can change under the read.
+                try {
+                    fs.writeFile("big", replacement);
+                    assertEquals(replacement, fs.readFile("big"));
+                    fs.deleteFile("big");
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                assertTrue(fs.getFreeBlocks() < totalBlocks);
+            }
+        });
+        assertEquals(payload.length, size);
+        assertTrue(writes[0] > 1);
+        assertArrayEquals(payload, out.toByteArray());
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+
+        fs.close();
+        fs = mount(false);
+        assertEquals(totalBlocks, fs.getFreeBlocks());
+    }
+}
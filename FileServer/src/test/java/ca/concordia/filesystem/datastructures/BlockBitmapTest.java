@@ -0,0 +1,106 @@
+package ca.concordia.filesystem.datastructures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// The word-level searches checked bit by bit against a BitSet, on sizes that do and do not end on a
+// word boundary.
+class BlockBitmapTest {
+
+    private static int lowestRun(BitSet used, int size, int count) {
+        for (int start = used.nextClearBit(0); start + count <= size; start = used.nextClearBit(start + 1)) {
+            int end = used.nextSetBit(start);
+            if ((end < 0 ? size : end) - start >= count) return start;
+        }
+        return -1;
+    }
+
+    private static boolean isFreeRun(BitSet used, int size, int start, int count) {
+        int end = used.nextSetBit(start);
+        return start >= 0 && start + count <= size && (end < 0 || end >= start + count);
+    }
+
+    @Test
+    void randomAllocationsMatchABitSet() {
+        Random random = new Random(3);
+        for (int size : new int[] {1, 63, 64, 65, 200, 1000}) {
+            BlockBitmap bitmap = new BlockBitmap(size);
+            BitSet used = new BitSet(size);
+            for (int step = 0; step < 3000; step++) {
+                int block = random.nextInt(size);
+                if (used.get(block)) {
+                    bitmap.free(block);
+                    used.clear(block);
+                } else {
+                    bitmap.allocate(block);
+                    used.set(block);
+                }
+                assertEquals(size - used.cardinality(), bitmap.freeCount());
+                int from = random.nextInt(size + 1);
+                int free = used.nextClearBit(from);
+                assertEquals(free < size ? free : -1, bitmap.nextFree(from));
+                int next = used.nextSetBit(from);
+                assertEquals(next < 0 ? size : next, bitmap.nextUsed(from));
+                assertEquals(!used.get(block), bitmap.isFree(block));
+
+                int count = 1 + random.nextInt(Math.min(size, 80));
+                assertEquals(lowestRun(used, size, count), bitmap.findFirstRun(count));
+                int run = bitmap.findRun(count, random.nextInt(size));
+                if (run < 0) assertEquals(-1, lowestRun(used, size, count));
+                else assertTrue(isFreeRun(used, size, run, count), "run " + run + " of " + count);
+            }
+        }
+    }
+
+    @Test
+    void findRunIsNextFitAndWrapsAround() {
+        BlockBitmap bitmap = new BlockBitmap(100);
+        assertEquals(0, bitmap.findRun(30, -1));
+        assertEquals(30, bitmap.findRun(30, -1));
+        assertEquals(60, bitmap.findRun(30, -1));
+        // Only 10 blocks are left past the cursor, so the search starts over from the beginning.
+        assertEquals(0, bitmap.findRun(30, -1));
+        // A free hint is taken as it is.
+        assertEquals(50, bitmap.findRun(20, 50));
+        for (int block = 0; block < 100; block += 2) bitmap.allocate(block);
+        assertEquals(-1, bitmap.findRun(2, -1));
+        assertEquals(1, bitmap.findRun(1, 1));
+    }
+
+    @Test
+    void setWordIgnoresBitsPastTheEnd() {
+        BlockBitmap bitmap = new BlockBitmap(70);
+        assertEquals(2, bitmap.wordCount());
+        bitmap.setWord(0, 0xF0L);
+        bitmap.setWord(1, -1L);
+        assertEquals(0x3FL, bitmap.word(1));
+        assertEquals(70 - 4 - 6, bitmap.freeCount());
+        assertEquals(-1, bitmap.nextFree(64));
+        assertEquals(64, bitmap.nextUsed(8));
+        assertEquals(70, bitmap.nextUsed(70));
+        // Replacing a word again counts only the difference.
+        bitmap.setWord(1, 0L);
+        assertEquals(70 - 4, bitmap.freeCount());
+        assertEquals(69, bitmap.findRun(1, 69));
+        assertEquals(8, bitmap.findFirstRun(62));
+        assertEquals(-1, bitmap.findFirstRun(63));
+    }
+
+    @Test
+    void searchesCrossWordBoundaries() {
+        BlockBitmap bitmap = new BlockBitmap(256);
+        for (int block = 0; block < 130; block++) bitmap.allocate(block);
+        bitmap.free(63);
+        bitmap.free(64);
+        assertEquals(63, bitmap.nextFree(0));
+        assertEquals(65, bitmap.nextUsed(63));
+        assertEquals(63, bitmap.findFirstRun(2));
+        assertEquals(130, bitmap.findFirstRun(3));
+        assertEquals(130, bitmap.nextFree(65));
+        assertEquals(256, bitmap.nextUsed(130));
+    }
+}
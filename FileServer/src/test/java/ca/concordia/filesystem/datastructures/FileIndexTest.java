@@ -0,0 +1,84 @@
+package ca.concordia.filesystem.datastructures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+// Random puts and removes checked against a HashMap after every step. The index is sized for the inode
+// table, so a full table has long probe runs whose backward shifts on removal are exercised too.
+class FileIndexTest {
+
+    private static final int SLOTS = 64;
+
+    private final InodeTable table = new InodeTable(SLOTS, 11, 44);
+    private final FileIndex index = new FileIndex(table);
+    private final Map<String, Integer> model = new HashMap<>();
+    private final List<Integer> freeSlots = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+
+    FileIndexTest() {
+        for (int i = 0; i < SLOTS; i++) freeSlots.add(i);
+        // Twice as many names as slots, so lookups of absent names are checked as well.
+        for (int i = 0; i < 2 * SLOTS; i++) names.add("file" + i);
+    }
+
+    private void put(String name) {
+        int slot = freeSlots.remove(freeSlots.size() - 1);
+        table.set(slot, name, 0, InodeTable.NO_BLOCK);
+        index.put(slot);
+        model.put(name, slot);
+    }
+
+    private void remove(String name) {
+        int slot = model.remove(name);
+        // The index compares names against the table, so the entry goes before the slot is cleared.
+        index.remove(name);
+        table.clear(slot);
+        freeSlots.add(slot);
+    }
+
+    private void check() {
+        for (String name : names) assertEquals(model.getOrDefault(name, -1), index.get(name), name);
+    }
+
+    @Test
+    void randomPutsAndRemovesMatchAMap() {
+        Random random = new Random(7);
+        for (int step = 0; step < 5000; step++) {
+            String name = names.get(random.nextInt(names.size()));
+            if (model.containsKey(name)) remove(name);
+            else if (!freeSlots.isEmpty()) put(name);
+            check();
+        }
+    }
+
+    @Test
+    void fullTableEmptiesInAnyOrder() {
+        Random random = new Random(8);
+        for (int round = 0; round < 20; round++) {
+            List<String> chosen = new ArrayList<>(names);
+            Collections.shuffle(chosen, random);
+            chosen = chosen.subList(0, SLOTS);
+            for (String name : chosen) put(name);
+            check();
+            Collections.shuffle(chosen, random);
+            for (String name : chosen) {
+                remove(name);
+                check();
+            }
+        }
+    }
+
+    @Test
+    void removingAnAbsentNameChangesNothing() {
+        for (int i = 0; i < SLOTS / 2; i++) put(names.get(i));
+        for (int i = SLOTS; i < names.size(); i++) index.remove(names.get(i));
+        check();
+    }
+}
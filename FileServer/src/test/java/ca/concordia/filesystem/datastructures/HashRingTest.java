@@ -0,0 +1,49 @@
+package ca.concordia.filesystem.datastructures;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HashRingTest {
+
+    private static final int NAMES = 20_000;
+
+    @Test
+    void addingAShardOnlyMovesNamesToIt() {
+        for (int shards = 1; shards < 8; shards++) {
+            HashRing before = new HashRing(shards);
+            HashRing after = new HashRing(shards + 1);
+            int moved = 0;
+            for (int i = 0; i < NAMES; i++) {
+                String name = "f" + i;
+                int from = before.shardFor(name);
+                int to = after.shardFor(name);
+                if (from == to) continue;
+                assertEquals(shards, to, name);
+                moved++;
+            }
+            // The new shard takes about its share, 1 / (shards + 1) of the names.
+            double share = (double) moved / NAMES;
+            double expected = 1.0 / (shards + 1);
+            assertTrue(share > expected * 0.7 && share < expected * 1.3, shards + " -> " + (shards + 1) + ": " + share);
+        }
+    }
+
+    @Test
+    void namesAreSpreadEvenly() {
+        HashRing ring = new HashRing(5);
+        int[] counts = new int[5];
+        for (int i = 0; i < NAMES; i++) counts[ring.shardFor("file" + i)]++;
+        for (int count : counts) assertTrue(Math.abs(count - NAMES / 5) < NAMES / 5 * 0.25, "shard with " + count);
+    }
+
+    @Test
+    void theSameNameAlwaysMapsToTheSameShard() {
+        HashRing a = new HashRing(4);
+        HashRing b = new HashRing(4);
+        for (int i = 0; i < 1000; i++) assertEquals(a.shardFor("n" + i), b.shardFor("n" + i));
+        HashRing single = new HashRing(1);
+        assertEquals(0, single.shardFor("anything"));
+    }
+}
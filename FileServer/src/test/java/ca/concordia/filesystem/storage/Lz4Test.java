@@ -0,0 +1,76 @@
+package ca.concordia.filesystem.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class Lz4Test {
+
+    private static byte[] roundTrip(byte[] data) throws IOException {
+        byte[] compressed = Lz4.compress(data);
+        byte[] restored = Lz4.decompress(compressed, compressed.length, data.length);
+        assertArrayEquals(data, restored);
+        return compressed;
+    }
+
+    @Test
+    void incompressibleInputRoundTrips() throws IOException {
+        Random random = new Random(1);
+        for (int length : new int[] {0, 1, 4, 12, 13, 100, 4096, 200_000}) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] compressed = roundTrip(data);
+            // Never more than the worst-case bound compress allocates for.
+            assertTrue(compressed.length <= length + length / 255 + 16);
+        }
+    }
+
+    @Test
+    void repetitiveInputRoundTripsAndShrinks() throws IOException {
+        byte[] zeros = new byte[1 << 20];
+        assertTrue(roundTrip(zeros).length < zeros.length / 100);
+
+        byte[] pattern = new byte[100_000];
+        for (int i = 0; i < pattern.length; i++) pattern[i] = (byte) "abcabd".charAt(i % 6);
+        assertTrue(roundTrip(pattern).length < pattern.length / 50);
+
+        // Runs longer than one length byte and offsets up to the 64 KiB window.
+        byte[] mixed = new byte[300_000];
+        Random random = new Random(2);
+        random.nextBytes(mixed);
+        System.arraycopy(mixed, 0, mixed, 65_535, 70_000);
+        Arrays.fill(mixed, 150_000, 160_000, (byte) 7);
+        roundTrip(mixed);
+    }
+
+    @Test
+    void randomMixesRoundTrip() throws IOException {
+        Random random = new Random(3);
+        for (int n = 0; n < 300; n++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            int alphabet = 1 + random.nextInt(random.nextBoolean() ? 4 : 256);
+            for (int i = 0; i < data.length; i++) data[i] = (byte) random.nextInt(alphabet);
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    void corruptedInputIsRejected() {
+        byte[] data = new byte[10_000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) (i % 10);
+        byte[] compressed = Lz4.compress(data);
+        assertThrows(IOException.class, () -> Lz4.decompress(compressed, compressed.length - 1, data.length));
+        assertThrows(IOException.class, () -> Lz4.decompress(compressed, compressed.length, data.length + 1));
+        byte[] badOffset = compressed.clone();
+        // The first sequence's offset, pointing before the start of the output.
+        int literals = (badOffset[0] & 0xff) >>> 4;
+        badOffset[1 + literals] = (byte) 0xff;
+        badOffset[2 + literals] = (byte) 0xff;
+        assertThrows(IOException.class, () -> Lz4.decompress(badOffset, badOffset.length, data.length));
+    }
+}
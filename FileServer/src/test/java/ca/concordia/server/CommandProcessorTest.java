@@ -0,0 +1,73 @@
+package ca.concordia.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import ca.concordia.filesystem.FileSystemManager;
+import ca.concordia.filesystem.storage.ForcePolicy;
+import ca.concordia.filesystem.storage.Journal;
+import ca.concordia.filesystem.storage.RandomAccessBlockStore;
+import ca.concordia.logging.Log;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// The range commands as a client sends them: WRITEAT and APPEND change part of a file, WRITE replaces it
+// with its data exactly as given, whatever that starts with.
+class CommandProcessorTest {
+
+    @TempDir
+    Path dir;
+    private FileSystemManager fs;
+    private CommandProcessor processor;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Log.setLevel(Log.Level.OFF);
+        RandomAccessBlockStore disk = new RandomAccessBlockStore(dir.resolve("disk.bin").toString(), 1 << 20,
+                ForcePolicy.NEVER);
+        Journal journal = new Journal(dir.resolve("disk.journal").toString(), disk, 1 << 20);
+        fs = new FileSystemManager(disk, journal, 256, 16);
+        processor = new CommandProcessor(fs);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fs.close();
+    }
+
+    private String execute(String command) {
+        StringWriter out = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(out)) {
+            processor.execute(command, writer);
+        }
+        return out.toString().trim();
+    }
+
+    @Test
+    void rangeCommandsChangePartOfAFile() throws Exception {
+        execute("CREATE f");
+        execute("WRITE f hello world");
+        assertEquals("Wrote data to: f at offset 6 (now 11 bytes)", execute("WRITEAT f 6 there"));
+        assertEquals("Wrote data to: f at offset 11 (now 18 bytes)", execute("WRITEAT f 11 , again"));
+        assertEquals("Appended data to: f (now 22 bytes)", execute("APPEND f  end"));
+        assertEquals("hello there, again end", fs.readFile("f"));
+        assertEquals("File content: there", execute("READ f 6 5"));
+        assertEquals("Usage: WRITEAT <filename> <offset> <data>", execute("WRITEAT f 6"));
+        assertEquals("Usage: WRITEAT <filename> <offset> <data>", execute("WRITEAT f -1 x"));
+        assertEquals("Usage: WRITEAT <filename> <offset> <data>", execute("WRITEAT f six x"));
+        assertEquals("hello there, again end", fs.readFile("f"));
+    }
+
+    @Test
+    void writeStoresDataVerbatim() throws Exception {
+        execute("CREATE f");
+        execute("WRITE f @3 looks like an offset");
+        assertEquals("@3 looks like an offset", fs.readFile("f"));
+        execute("WRITE f 12 starts with a number");
+        assertEquals("12 starts with a number", fs.readFile("f"));
+    }
+}